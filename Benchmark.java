@@ -7,7 +7,8 @@ static final String[] s = {"0 0 0","0 256 0 256 256","0","0 256 256 ","0 512 0 2
 public static void main(String[] fs) throws Exception {
     var reader = new ImageReader();
     reader.setFlattenedResolutions(false);
-    reader.setId("/Users/zerf/Downloads/Github-repos/CGDogan/camic-Distro/images/1.3leicabbiggg.21773233891171386611617621819013191107166.dcm");
+    // For repeatable measurements see benchmark/ instead
+    reader.setId(fs.length > 0 ? fs[0] : "/Users/zerf/Downloads/Github-repos/CGDogan/camic-Distro/images/1.3leicabbiggg.21773233891171386611617621819013191107166.dcm");
     byte [] buf = new byte[50000000];
     var xx = reader.getSizeX();
     var yy = reader.getSizeY();
@@ -21,7 +22,7 @@ int r = 0;
         var y1 = 0;
         try {
 x1= Integer.valueOf(k[1]);
-y1= Integer.valueOf(k[1]);
+y1= Integer.valueOf(k[2]);
 
         }catch(Exception e) {
 
@@ -29,7 +30,7 @@ y1= Integer.valueOf(k[1]);
         var x2 = Math.min(256, Math.max(xx-x1,0));
         var y2 = Math.min(256, Math.max(yy-y1,0));
 
-        reader.openBytes(0, buf, x1, x2, x2, y2);
+        reader.openBytes(0, buf, x1, y1, x2, y2);
     }
     System.out.println(buf[3]);
         System.out.println(r);
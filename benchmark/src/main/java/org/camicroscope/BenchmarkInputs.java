@@ -0,0 +1,59 @@
+package org.camicroscope;
+
+import loci.formats.ImageWriter;
+import loci.formats.tools.ImageConverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Generates benchmark inputs so that benchmarks run anywhere.
+// Bio-Formats' fake format makes an image from the filename alone,
+// e.g. "x&sizeX=512&pixelType=uint16.fake", and we convert that to
+// a tiled OME-TIFF pyramid to benchmark a real reader and codec.
+// Files are kept in java.io.tmpdir/bfbridge-benchmark between runs.
+final class BenchmarkInputs {
+    private BenchmarkInputs() {
+    }
+
+    static final File dir = new File(System.getProperty("java.io.tmpdir"), "bfbridge-benchmark");
+
+    static File fake(String pixelType, int size) throws IOException {
+        dir.mkdirs();
+        int channels = pixelType.equals("uint8") ? 3 : 1;
+        File f = new File(dir, "image&sizeX=" + size + "&sizeY=" + size + "&sizeC=" + channels + "&rgb="
+                + channels + "&pixelType=" + pixelType + ".fake");
+        f.createNewFile();
+        return f;
+    }
+
+    // A pyramid with 512x512 zlib compressed tiles, 2x downsampled per level
+    static synchronized File omeTiff(String pixelType, int size) throws Exception {
+        File out = new File(dir, pixelType + "-" + size + ".ome.tiff");
+        if (out.isFile()) {
+            return out;
+        }
+        File tmp = new File(dir, pixelType + "-" + size + ".tmp.ome.tiff");
+        tmp.delete();
+        String[] args = { "-noflat", "-pyramid-resolutions", "4", "-pyramid-scale", "2",
+                "-tilex", "512", "-tiley", "512", "-compression", "zlib",
+                fake(pixelType, size).getAbsolutePath(), tmp.getAbsolutePath() };
+        // Not ImageConverter.main since that calls System.exit
+        if (!new ImageConverter().testConvert(new ImageWriter(), args)) {
+            throw new IOException("Could not write " + tmp);
+        }
+        if (!tmp.renameTo(out)) {
+            throw new IOException("Could not rename " + tmp + " to " + out);
+        }
+        return out;
+    }
+
+    // Writes the filename to the start of the buffer as BFOpen expects
+    // and returns its length
+    static int putFilename(ByteBuffer buffer, File f) {
+        byte[] name = f.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        buffer.rewind().put(name);
+        return name.length;
+    }
+}
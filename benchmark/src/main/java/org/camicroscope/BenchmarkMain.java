@@ -0,0 +1,94 @@
+package org.camicroscope;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Runs JMH with the usual command line options, then saves the scores
+// to a tab separated file and compares them with a previous run:
+// java -Dresults=new.tsv -Dbaseline=old.tsv -jar target/benchmarks.jar [JMH options]
+// A benchmark is reported as a regression if it got slower by more than
+// the error margins of both runs combined. The exit code is 1 if any did.
+// All benchmarks here measure average time, so higher is worse.
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        Collection<RunResult> results = new Runner(new CommandLineOptions(args)).run();
+
+        Map<String, double[]> scores = new HashMap<>();
+        StringBuilder tsv = new StringBuilder("benchmark\tscore\terror\tunit\n");
+        for (RunResult r : results) {
+            String name = name(r);
+            double score = r.getPrimaryResult().getScore();
+            double error = r.getPrimaryResult().getScoreError();
+            scores.put(name, new double[] { score, error });
+            tsv.append(name).append('\t').append(score).append('\t').append(error).append('\t')
+                    .append(r.getPrimaryResult().getScoreUnit()).append('\n');
+        }
+        Files.write(Path.of(System.getProperty("results", "jmh-results.tsv")),
+                tsv.toString().getBytes(StandardCharsets.UTF_8));
+
+        String baseline = System.getProperty("baseline");
+        if (baseline != null && compare(readScores(Path.of(baseline)), scores)) {
+            System.exit(1);
+        }
+    }
+
+    // Benchmark name with its parameters, e.g. TileBenchmark.openBytes:access=random,pixelType=uint8
+    private static String name(RunResult r) {
+        StringBuilder name = new StringBuilder(r.getParams().getBenchmark()
+                .replace("org.camicroscope.", ""));
+        String separator = ":";
+        for (String key : new TreeSet<>(r.getParams().getParamsKeys())) {
+            name.append(separator).append(key).append('=').append(r.getParams().getParam(key));
+            separator = ",";
+        }
+        return name.toString();
+    }
+
+    private static Map<String, double[]> readScores(Path file) throws IOException {
+        Map<String, double[]> scores = new HashMap<>();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t");
+            scores.put(fields[0], new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) });
+        }
+        return scores;
+    }
+
+    // Prints the change of every benchmark in both runs
+    // and returns whether any regressed
+    private static boolean compare(Map<String, double[]> before, Map<String, double[]> after) {
+        boolean regressed = false;
+        PrintWriter out = new PrintWriter(System.out, true);
+        out.println();
+        out.println("Change from baseline:");
+        for (String name : new TreeSet<>(after.keySet())) {
+            double[] old = before.get(name);
+            if (old == null) {
+                continue;
+            }
+            double[] now = after.get(name);
+            double change = (now[0] - old[0]) / old[0] * 100;
+            String verdict = "";
+            if (now[0] - old[0] > now[1] + old[1]) {
+                verdict = "  REGRESSION";
+                regressed = true;
+            } else if (old[0] - now[0] > now[1] + old[1]) {
+                verdict = "  improved";
+            }
+            out.printf("%+7.1f%%  %s%s%n", change, name, verdict);
+        }
+        return regressed;
+    }
+}
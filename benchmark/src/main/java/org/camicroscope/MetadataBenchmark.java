@@ -0,0 +1,74 @@
+package org.camicroscope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// What a client does after BFOpen to lay out the pyramid
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataBenchmark {
+    private BFBridge bridge;
+
+    @Setup
+    public void setup() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 << 20);
+        bridge = new BFBridge();
+        bridge.BFSetCommunicationBuffer(buffer);
+        if (bridge.BFOpen(BenchmarkInputs.putFilename(buffer, BenchmarkInputs.omeTiff("uint8", 8192))) < 0) {
+            throw new IllegalStateException("BFOpen failed");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        bridge.BFClose();
+    }
+
+    @Benchmark
+    public void pyramidLayout(Blackhole bh) {
+        int seriesCount = bridge.BFGetSeriesCount();
+        for (int s = 0; s < seriesCount; s++) {
+            bridge.BFSetCurrentSeries(s);
+            int resolutions = bridge.BFGetResolutionCount();
+            for (int r = 0; r < resolutions; r++) {
+                bridge.BFSetCurrentResolution(r);
+                bh.consume(bridge.BFGetSizeX());
+                bh.consume(bridge.BFGetSizeY());
+                bh.consume(bridge.BFGetOptimalTileWidth());
+                bh.consume(bridge.BFGetOptimalTileHeight());
+            }
+            bh.consume(bridge.BFGetSizeC());
+            bh.consume(bridge.BFGetSizeZ());
+            bh.consume(bridge.BFGetSizeT());
+            bh.consume(bridge.BFGetPixelType());
+            bh.consume(bridge.BFIsRGB());
+            bh.consume(bridge.BFIsInterleaved());
+            bh.consume(bridge.BFIsLittleEndian());
+            bh.consume(bridge.BFGetMPPX(s));
+            bh.consume(bridge.BFGetMPPY(s));
+        }
+        bridge.BFSetCurrentSeries(0);
+    }
+
+    @Benchmark
+    public int dumpOMEXML() {
+        return bridge.BFDumpOMEXMLMetadata();
+    }
+}
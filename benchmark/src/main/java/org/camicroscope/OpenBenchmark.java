@@ -0,0 +1,103 @@
+package org.camicroscope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Cost of BFOpen when the file isn't already open.
+// The reader pool is disabled so that every call really opens the file.
+// BFBridge reads bfbridge.* in static initializers, so each variant
+// passes them on the command line of its own forked JVM rather than
+// setting them at runtime.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OpenBenchmark {
+    // Relative to the working directory of the forked JVM, which JMH
+    // keeps the same as the launcher's.
+    static final String STATE_DIR = "bfbridge-benchmark-state";
+
+    private BFBridge bridge;
+    private ByteBuffer buffer;
+    private File input;
+
+    @Setup
+    public void setup() throws Exception {
+        if (!"0".equals(System.getProperty("bfbridge.poolsize"))) {
+            throw new IllegalStateException("run with -Dbfbridge.poolsize=0");
+        }
+        if (System.getProperty("bfbridge.cachedir") != null) {
+            // Start from an empty cache; it must exist before BFBridge loads
+            Path dir = Path.of(System.getProperty("bfbridge.cachedir"));
+            clear(dir);
+            Files.createDirectories(dir);
+        }
+        input = BenchmarkInputs.omeTiff("uint8", 8192);
+        buffer = ByteBuffer.allocateDirect(64 << 20);
+        bridge = new BFBridge();
+        bridge.BFSetCommunicationBuffer(buffer);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dbfbridge.poolsize=0", "-Dbfbridge.metadata=full" })
+    public int openFull() {
+        return open();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dbfbridge.poolsize=0", "-Dbfbridge.metadata=minimal" })
+    public int openMinimal() {
+        return open();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dbfbridge.poolsize=0", "-Dbfbridge.metadata=full",
+            "-Dbfbridge.cachedir=" + STATE_DIR })
+    public int openFullStateCache() {
+        return open();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dbfbridge.poolsize=0", "-Dbfbridge.metadata=minimal",
+            "-Dbfbridge.cachedir=" + STATE_DIR })
+    public int openMinimalStateCache() {
+        return open();
+    }
+
+    private int open() {
+        int result = bridge.BFOpen(BenchmarkInputs.putFilename(buffer, input));
+        if (result < 0) {
+            throw new IllegalStateException("BFOpen failed");
+        }
+        return result;
+    }
+
+    private static void clear(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+}
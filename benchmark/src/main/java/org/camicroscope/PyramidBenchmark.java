@@ -0,0 +1,132 @@
+package org.camicroscope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Codec, container and tile size choices of BFToolsGeneratePyramid.
+// encode: time to write a whole pyramid of a synthetic SIZE x SIZE RGB image
+// decode: time to read back every full resolution tile with BFOpenBytes
+// Divide SIZE * SIZE * 3 bytes by either time for the throughput.
+// Setup prints the size of the output of each choice.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PyramidBenchmark {
+    static final int SIZE = 4096;
+
+    // container/codec; DICOM has no zlib
+    @Param({ "ome-tiff/j2k-lossy", "ome-tiff/j2k", "ome-tiff/jpeg", "ome-tiff/zlib", "ome-tiff/none",
+            "dicom/j2k-lossy", "dicom/jpeg" })
+    public String output;
+
+    @Param({ "256", "512" })
+    public int tileSize;
+
+    // Converting closes the open file so decode has its own bridge
+    private BFBridge encoder;
+    private ByteBuffer encoderBuffer;
+    private BFBridge decoder;
+    private File input;
+    // Each output in its own directory since DICOM may write several files
+    private File outputDir;
+    private File decodeInput;
+
+    @Setup
+    public void setup() throws Exception {
+        input = BenchmarkInputs.fake("uint8", SIZE);
+        encoderBuffer = ByteBuffer.allocateDirect(1 << 20);
+        encoder = new BFBridge();
+        encoder.BFSetCommunicationBuffer(encoderBuffer);
+        outputDir = Files.createTempDirectory(BenchmarkInputs.dir.toPath(), "pyramid").toFile();
+
+        // What decode reads, written once
+        decodeInput = convert(new File(Files.createTempDirectory(BenchmarkInputs.dir.toPath(), "pyramid").toFile(),
+                "decode" + extension()));
+        long bytes = 0;
+        for (File f : decodeInput.getParentFile().listFiles()) {
+            bytes += f.length();
+        }
+        System.out.printf("%n# %s, %d px tiles: %d bytes, %.1f%% of uncompressed%n", output, tileSize, bytes,
+                bytes * 100.0 / ((long) SIZE * SIZE * 3));
+        ByteBuffer decoderBuffer = ByteBuffer.allocateDirect(64 << 20);
+        decoder = new BFBridge();
+        decoder.BFSetCommunicationBuffer(decoderBuffer);
+        if (decoder.BFOpen(BenchmarkInputs.putFilename(decoderBuffer, decodeInput)) < 0) {
+            throw new IllegalStateException("BFOpen failed");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        decoder.BFClose();
+        delete(outputDir);
+        delete(decodeInput.getParentFile());
+    }
+
+    private String extension() {
+        return output.startsWith("dicom/") ? ".dcm" : ".ome.tiff";
+    }
+
+    private File convert(File out) {
+        String[] choice = output.split("/");
+        String options = "container=" + choice[0] + ",codec=" + choice[1] + ",tile=" + tileSize;
+        byte[] in = input.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        byte[] outName = out.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        byte[] optionBytes = options.getBytes(StandardCharsets.UTF_8);
+        encoderBuffer.rewind().put(in).put(outName).put(optionBytes);
+        if (encoder.BFToolsGeneratePyramid(in.length, outName.length, optionBytes.length, 16) < 0) {
+            throw new IllegalStateException("BFToolsGeneratePyramid failed");
+        }
+        return out;
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public File encode() {
+        return convert(new File(outputDir, "encode" + extension()));
+    }
+
+    @Benchmark
+    public long decode() {
+        long bytes = 0;
+        for (int y = 0; y < SIZE; y += tileSize) {
+            for (int x = 0; x < SIZE; x += tileSize) {
+                int result = decoder.BFOpenBytes(0, x, y, Math.min(tileSize, SIZE - x),
+                        Math.min(tileSize, SIZE - y));
+                if (result < 0) {
+                    throw new IllegalStateException("BFOpenBytes failed");
+                }
+                bytes += result;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,57 @@
+package org.camicroscope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThumbnailBenchmark {
+    @Param({ "uint8", "uint16" })
+    public String pixelType;
+
+    @Param({ "256", "1024" })
+    public int size;
+
+    private BFBridge bridge;
+
+    @Setup
+    public void setup() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 << 20);
+        bridge = new BFBridge();
+        bridge.BFSetCommunicationBuffer(buffer);
+        if (bridge.BFOpen(BenchmarkInputs.putFilename(buffer, BenchmarkInputs.omeTiff(pixelType, 8192))) < 0) {
+            throw new IllegalStateException("BFOpen failed");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        bridge.BFClose();
+    }
+
+    @Benchmark
+    public int openThumbBytes() {
+        int result = bridge.BFOpenThumbBytes(0, size, size);
+        if (result < 0) {
+            throw new IllegalStateException("BFOpenThumbBytes failed");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,93 @@
+package org.camicroscope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One BFOpenBytes call per operation, walking the full resolution
+// in raster order or in a fixed random order.
+// Run with -prof gc to see allocation per tile.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileBenchmark {
+    @Param({ "uint8", "uint16", "float" })
+    public String pixelType;
+
+    @Param({ "256", "512", "1024" })
+    public int tileSize;
+
+    @Param({ "sequential", "random" })
+    public String access;
+
+    private BFBridge bridge;
+    private int[] tiles;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 << 20);
+        bridge = new BFBridge();
+        bridge.BFSetCommunicationBuffer(buffer);
+        if (bridge.BFOpen(BenchmarkInputs.putFilename(buffer, BenchmarkInputs.omeTiff(pixelType, 8192))) < 0) {
+            throw new IllegalStateException("BFOpen failed");
+        }
+
+        int sizeX = bridge.BFGetSizeX();
+        int sizeY = bridge.BFGetSizeY();
+        ArrayList<Integer> order = new ArrayList<>();
+        for (int y = 0; y + tileSize <= sizeY; y += tileSize) {
+            for (int x = 0; x + tileSize <= sizeX; x += tileSize) {
+                order.add(x);
+                order.add(y);
+            }
+        }
+        int count = order.size() / 2;
+        ArrayList<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            indices.add(i);
+        }
+        if (access.equals("random")) {
+            Collections.shuffle(indices, new Random(42));
+        }
+        tiles = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+            tiles[i * 2] = order.get(indices.get(i) * 2);
+            tiles[i * 2 + 1] = order.get(indices.get(i) * 2 + 1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        bridge.BFClose();
+    }
+
+    @Benchmark
+    public int openBytes() {
+        int i = next;
+        next = (next + 2) % tiles.length;
+        int result = bridge.BFOpenBytes(0, tiles[i], tiles[i + 1], tileSize, tileSize);
+        if (result < 0) {
+            throw new IllegalStateException("BFOpenBytes failed");
+        }
+        return result;
+    }
+}
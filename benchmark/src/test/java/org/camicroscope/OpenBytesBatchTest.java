@@ -0,0 +1,85 @@
+package org.camicroscope;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// BFOpenBytesBatch's output: a little-endian table of status, offset
+// and length per requested tile, in request order, followed by the
+// tiles, each the bytes BFOpenBytes would return for it.
+// The buffer is big-endian, as Java buffers start, so a table written
+// in the buffer's order would be caught.
+class OpenBytesBatchTest {
+    private static final int SIZE = 1024;
+    private static final int BUFFER = 2 << 20;
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 3 })
+    void writesTableAndTiles(int parallelism) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+        BFBridge bridge = new BFBridge();
+        bridge.BFSetCommunicationBuffer(buffer);
+        assertTrue(bridge.BFOpen(BenchmarkInputs.putFilename(buffer, BenchmarkInputs.fake("uint8", SIZE))) >= 0);
+        assertEquals(1, bridge.BFSetParallelism(parallelism));
+
+        // Out of order, two in the same 256x256 area, one outside
+        // the image and one bigger than the buffer
+        int[][] rects = {
+                { 0, 512, 256, 256, 256 },
+                { 0, 0, 0, 256, 256 },
+                { 0, 900, 900, 200, 200 },
+                { 0, 100, 200, 50, 30 },
+                { 0, 0, 0, SIZE, SIZE },
+                { 0, 128, 128, 64, 64 },
+        };
+        int[] expectedStatus = { 1, 1, -1, 1, -2, 1 };
+        byte[][] expected = new byte[rects.length][];
+        for (int i = 0; i < rects.length; i++) {
+            if (expectedStatus[i] == 1) {
+                int[] r = rects[i];
+                int length = bridge.BFOpenBytes(r[0], r[1], r[2], r[3], r[4]);
+                assertTrue(length > 0);
+                expected[i] = new byte[length];
+                buffer.rewind().get(expected[i]);
+            }
+        }
+
+        ByteBuffer input = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).rewind();
+        for (int[] r : rects) {
+            for (int v : r) {
+                input.putInt(v);
+            }
+        }
+        int total = bridge.BFOpenBytesBatch(rects.length);
+        assertTrue(total > 0, "BFOpenBytesBatch returned " + total);
+
+        int tableLength = rects.length * 3 * 4;
+        ByteBuffer table = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).rewind();
+        int end = tableLength;
+        for (int i = 0; i < rects.length; i++) {
+            int status = table.getInt();
+            int offset = table.getInt();
+            int length = table.getInt();
+            assertEquals(expectedStatus[i], status, "status of tile " + i);
+            if (status != 1) {
+                continue;
+            }
+            assertEquals(expected[i].length, length, "length of tile " + i);
+            assertTrue(offset >= tableLength && offset + length <= total, "offset of tile " + i);
+            byte[] tile = new byte[length];
+            buffer.position(offset);
+            buffer.get(tile);
+            assertArrayEquals(expected[i], tile, "bytes of tile " + i);
+            end = Math.max(end, offset + length);
+        }
+        // Tiles are packed after the table
+        assertEquals(end, total);
+        bridge.BFClose();
+    }
+}
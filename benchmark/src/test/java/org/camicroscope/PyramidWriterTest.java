@@ -0,0 +1,111 @@
+package org.camicroscope;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Writes a pyramid from a generated .fake image with a lossless codec
+// and reads it back: every level must have the size BFPyramidWriter
+// promises, the full resolution the input's pixels, and each smaller
+// level BFScaler's average of the level above it.
+class PyramidWriterTest {
+    private static final int SIZE = 2048;
+    private static final int LEVELS = 4;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writesEveryLevel() throws Exception {
+        File input = BenchmarkInputs.fake("uint8", SIZE);
+        File output = dir.resolve("pyramid.ome.tiff").toFile();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16 << 20);
+        BFBridge writer = new BFBridge();
+        writer.BFSetCommunicationBuffer(buffer);
+        byte[] in = input.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        byte[] out = output.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        byte[] options = "codec=zlib,tile=256".getBytes(StandardCharsets.UTF_8);
+        buffer.rewind().put(in).put(out).put(options);
+        assertEquals(1, writer.BFToolsGeneratePyramid(in.length, out.length, options.length, LEVELS));
+
+        ByteBuffer sourceBuffer = ByteBuffer.allocateDirect(16 << 20);
+        BFBridge source = open(input, sourceBuffer);
+        BFBridge pyramid = open(output, buffer);
+        assertEquals(LEVELS, pyramid.BFGetResolutionCount());
+        assertEquals(source.BFGetPixelType(), pyramid.BFGetPixelType());
+        assertEquals(source.BFGetRGBChannelCount(), pyramid.BFGetRGBChannelCount());
+        assertEquals(source.BFGetImageCount(), pyramid.BFGetImageCount());
+
+        int[][] regions = { { 0, 0, 256, 256 }, { 1000, 700, 100, 50 }, { SIZE - 256, SIZE - 256, 256, 256 } };
+        for (int[] r : regions) {
+            assertArrayEquals(planar(source, read(source, sourceBuffer, r[0], r[1], r[2], r[3]), r[2], r[3]),
+                    planar(pyramid, read(pyramid, buffer, r[0], r[1], r[2], r[3]), r[2], r[3]),
+                    "full resolution at " + r[0] + "," + r[1]);
+        }
+
+        int channels = pyramid.BFGetRGBChannelCount();
+        boolean interleaved = pyramid.BFIsInterleaved() == 1;
+        boolean littleEndian = pyramid.BFIsLittleEndian() == 1;
+        for (int level = 1; level < LEVELS; level++) {
+            int size = SIZE >> level;
+            assertEquals(1, pyramid.BFSetCurrentResolution(level));
+            assertEquals(size, pyramid.BFGetSizeX(), "width of level " + level);
+            assertEquals(size, pyramid.BFGetSizeY(), "height of level " + level);
+
+            // Even offsets so the level above covers whole source pixels
+            int[][] samples = { { 0, 0, 64, 64 }, { size / 2 - 16, size / 4, 32, 48 }, { size - 64, size - 64, 64, 64 } };
+            for (int[] s : samples) {
+                byte[] actual = read(pyramid, buffer, s[0], s[1], s[2], s[3]);
+                assertEquals(1, pyramid.BFSetCurrentResolution(level - 1));
+                byte[] above = read(pyramid, buffer, s[0] * 2, s[1] * 2, s[2] * 2, s[3] * 2);
+                assertEquals(1, pyramid.BFSetCurrentResolution(level));
+                byte[] expected = BFScaler.resize(above, s[2] * 2, s[3] * 2, s[2], s[3], pyramid.BFGetPixelType(),
+                        channels, interleaved, littleEndian);
+                assertArrayEquals(expected, actual, "level " + level + " at " + s[0] + "," + s[1]);
+            }
+        }
+        source.BFClose();
+        pyramid.BFClose();
+    }
+
+    private static BFBridge open(File f, ByteBuffer buffer) {
+        BFBridge bridge = new BFBridge();
+        bridge.BFSetCommunicationBuffer(buffer);
+        assertTrue(bridge.BFOpen(BenchmarkInputs.putFilename(buffer, f)) >= 0, "open " + f);
+        return bridge;
+    }
+
+    private static byte[] read(BFBridge bridge, ByteBuffer buffer, int x, int y, int w, int h) {
+        int length = bridge.BFOpenBytes(0, x, y, w, h);
+        assertTrue(length > 0, "BFOpenBytes " + x + "," + y + " " + w + "x" + h);
+        byte[] bytes = new byte[length];
+        buffer.rewind().get(bytes);
+        return bytes;
+    }
+
+    // The two files may disagree on whether channels are interleaved
+    private static byte[] planar(BFBridge bridge, byte[] pixels, int w, int h) {
+        if (bridge.BFIsInterleaved() != 1) {
+            return pixels;
+        }
+        int channels = bridge.BFGetRGBChannelCount();
+        int bytesPerPixel = bridge.BFGetBytesPerPixel();
+        byte[] result = new byte[pixels.length];
+        for (int i = 0; i < w * h; i++) {
+            for (int c = 0; c < channels; c++) {
+                System.arraycopy(pixels, (i * channels + c) * bytesPerPixel, result,
+                        (c * w * h + i) * bytesPerPixel, bytesPerPixel);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,92 @@
+package org.camicroscope;
+
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.ome.OMEXMLMetadataImpl;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// Opens a pyramid through BFStateCacheReader twice: the second open
+// must answer from the saved state without opening the file, agree
+// with the first on everything the bridge asks, and open the file
+// for real once pixels are needed.
+class StateCacheTest {
+    @TempDir
+    Path cachedir;
+
+    @Test
+    void reopensFromSavedState() throws Exception {
+        File input = BenchmarkInputs.omeTiff("uint8", 2048);
+
+        ImageReader firstInner = new ImageReader();
+        BFStateCacheReader first = reader(firstInner);
+        first.setId(input.getAbsolutePath());
+        assertEquals(1, cachedir.toFile().list((dir, name) -> name.endsWith(".bfstate")).length);
+        List<String> expected = describe(first);
+        byte[] expectedTile = first.openBytes(0, 100, 200, 300, 150);
+        OMEXMLMetadata expectedMetadata = (OMEXMLMetadata) first.getMetadataStore();
+        first.close();
+
+        ImageReader secondInner = new ImageReader();
+        BFStateCacheReader second = reader(secondInner);
+        second.setId(input.getAbsolutePath());
+        assertNull(secondInner.getCurrentFile(), "opened the file instead of using the cache");
+        assertEquals(expected, describe(second));
+        assertNull(secondInner.getCurrentFile(), "opened the file to describe it");
+
+        second.loadMetadata();
+        OMEXMLMetadata metadata = (OMEXMLMetadata) second.getMetadataStore();
+        assertEquals(expectedMetadata.getImageCount(), metadata.getImageCount());
+        assertEquals(expectedMetadata.getPixelsSizeX(0), metadata.getPixelsSizeX(0));
+        assertEquals(expectedMetadata.getPixelsPhysicalSizeX(0), metadata.getPixelsPhysicalSizeX(0));
+
+        second.setSeries(0);
+        second.setResolution(0);
+        assertArrayEquals(expectedTile, second.openBytes(0, 100, 200, 300, 150));
+        assertNotNull(secondInner.getCurrentFile(), "pixels must come from the file");
+        second.close();
+    }
+
+    // As BFBridge.BFReaders sets it up
+    private BFStateCacheReader reader(IFormatReader inner) {
+        BFStateCacheReader r = new BFStateCacheReader(inner, cachedir.toFile());
+        r.setFlattenedResolutions(false);
+        r.setMetadataStore(new OMEXMLMetadataImpl());
+        return r;
+    }
+
+    // What the bridge asks of every series and resolution
+    private static List<String> describe(IFormatReader r) {
+        List<String> d = new ArrayList<>();
+        d.add(r.getFormat());
+        d.add(Arrays.toString(r.getUsedFiles()));
+        for (int s = 0; s < r.getSeriesCount(); s++) {
+            r.setSeries(s);
+            d.add("series " + s + ": " + r.getDimensionOrder() + " z" + r.getSizeZ() + " c" + r.getSizeC() + " t"
+                    + r.getSizeT() + " effective c" + r.getEffectiveSizeC() + " images " + r.getImageCount()
+                    + " rgb " + r.getRGBChannelCount() + " " + r.isRGB() + " type " + r.getPixelType() + " bits "
+                    + r.getBitsPerPixel() + " interleaved " + r.isInterleaved() + " little endian "
+                    + r.isLittleEndian() + " indexed " + r.isIndexed() + " false color " + r.isFalseColor());
+            for (int l = 0; l < r.getResolutionCount(); l++) {
+                r.setResolution(l);
+                d.add("resolution " + l + ": " + r.getSizeX() + "x" + r.getSizeY() + " tiles "
+                        + r.getOptimalTileWidth() + "x" + r.getOptimalTileHeight());
+            }
+            r.setResolution(0);
+        }
+        r.setSeries(0);
+        return d;
+    }
+}
@@ -10,22 +10,37 @@ import loci.formats.FormatTools;
 // https://downloads.openmicroscopy.org/bio-formats/7.0.0/api/loci/formats/services/OMEXMLServiceImpl.html
 //import loci.formats.services.OMEXMLServiceImpl;
 import loci.formats.ome.OMEXMLMetadataImpl;
-import loci.formats.Memoizer;
+import loci.formats.meta.MetadataStore;
 import loci.formats.ome.OMEXMLMetadata;
 import loci.formats.services.JPEGTurboServiceImpl;
 import ome.units.UNITS;
+import ome.units.quantity.Length;
 
-import loci.formats.tools.ImageConverter;
 
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import javax.imageio.ImageIO;
@@ -41,8 +56,8 @@ public class BFBridge {
     // To allow both cached and noncached setup with one type:
     // ImageReader is our noncached reader but it doesn't
     // implement ReaderWrapper so make a wrapper to make substitution
-    // possible with Memoizer
-    private final class BFReaderWrapper extends ReaderWrapper {
+    // possible with BFStateCacheReader
+    private static final class BFReaderWrapper extends ReaderWrapper {
         BFReaderWrapper(IFormatReader r) {
             super(r);
         }
@@ -51,7 +66,7 @@ public class BFBridge {
     // BioFormats doesn't give us control over thumbnail sizes
     // unless we define a wrapper for FormatTools.openThumbBytes
     // https://github.com/ome/bioformats/blob/9cb6cfaaa5361bcc4ed9f9841f2a4caa29aad6c7/components/formats-api/src/loci/formats/FormatTools.java#L1287
-    private final class BFThumbnailWrapper extends ReaderWrapper {
+    private static final class BFThumbnailWrapper extends ReaderWrapper {
         // exact sizes
         private int thumbX = 256;
         private int thumbY = 256;
@@ -81,28 +96,153 @@ public class BFBridge {
         }
     }
 
-    private final BFThumbnailWrapper readerWithThumbnailSizes;
-    private final ReaderWrapper reader;
+    // Everything needed to serve one file. Kept together so that
+    // an opened file can be parked in BFReaderPool and picked up
+    // again by any BFBridge instance.
+    static final class BFReaders {
+        // Our uncaching internal reader. ImageReader and ReaderWrapper
+        // both implement IFormatReader but if you need an ImageReader-only
+        // method, access this. (You could also do (inefficiently)
+        // .getReader() on "reader" and cast it to ImageReader
+        // since that's what we use)
+        final ImageReader nonCachingReader = new ImageReader();
+        final ReaderWrapper reader;
+        final BFThumbnailWrapper readerWithThumbnailSizes;
+        // Filled by setId: OMEXMLMetadataImpl, or BFMinimalMetadata
+        // with -Dbfbridge.metadata=minimal
+        final MetadataStore metadata = minimalMetadata ? new BFMinimalMetadata() : new OMEXMLMetadataImpl();
+        // For BFDumpOMEXMLMetadata: metadata itself, or in minimal mode
+        // built when first asked for
+        private OMEXMLMetadataImpl fullMetadata = minimalMetadata ? null : (OMEXMLMetadataImpl) metadata;
+
+        BFReaders() {
+            if (cachedir == null) {
+                reader = new BFReaderWrapper(nonCachingReader);
+            } else {
+                reader = new BFStateCacheReader(nonCachingReader, cachedir);
+            }
+
+            // Use the easier resolution API
+            reader.setFlattenedResolutions(false);
+            reader.setMetadataStore(metadata);
+            // Save format-specific metadata as well?
+            // metadata.setOriginalMetadataPopulated(true);
+
+            readerWithThumbnailSizes = new BFThumbnailWrapper(reader);
+        }
+
+        // For parallel decoding; opened on demand, see BFSetParallelism
+        BFReaderCopies copies = null;
+        // For plane streams when parallel decoding is off; opened by
+        // the first stream and kept for the next ones on this file
+        BFReaderCopies planeCopies = null;
+        // For BFPrefetcher, see prefetchCopies()
+        CompletableFuture<BFReaderCopies> prefetchCopies = null;
+
+        // One copy is enough: prefetching shouldn't compete for cores
+        // with what the user is waiting for. Opened in the background
+        // so that the request that enabled prefetching doesn't wait.
+        CompletableFuture<BFReaderCopies> prefetchCopies() {
+            if (prefetchCopies == null) {
+                String path = reader.getCurrentFile();
+                prefetchCopies = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return new BFReaderCopies(path, 1);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, BFReaderCopies.workers);
+            }
+            return prefetchCopies;
+        }
+
+        // The prefetcher's copy if it is open
+        BFReaderCopies openPrefetchCopies() {
+            return prefetchCopies != null && prefetchCopies.isDone() && !prefetchCopies.isCompletedExceptionally()
+                    ? prefetchCopies.join() : null;
+        }
+
+        // If the file was opened from bfbridge.cachedir, fills
+        // metadata, which is otherwise left empty until needed
+        void loadMetadata() throws Exception {
+            if (reader instanceof BFStateCacheReader) {
+                ((BFStateCacheReader) reader).loadMetadata();
+            }
+        }
+
+        OMEXMLMetadataImpl fullMetadata() throws Exception {
+            loadMetadata();
+            if (fullMetadata == null) {
+                // Read the file again, this time keeping everything
+                OMEXMLMetadataImpl full = new OMEXMLMetadataImpl();
+                ImageReader r = new ImageReader();
+                try {
+                    r.setFlattenedResolutions(false);
+                    r.setMetadataStore(full);
+                    r.setId(reader.getCurrentFile());
+                } finally {
+                    r.close();
+                }
+                fullMetadata = full;
+            }
+            return fullMetadata;
+        }
+
+        // Physical size of a series, null if not defined.
+        // axis: 0 X, 1 Y, 2 Z
+        Length getPhysicalSize(int series, int axis) throws Exception {
+            loadMetadata();
+            return BFMinimalMetadata.getPhysicalSize(metadata, series, axis);
+        }
+
+        void close() throws IOException {
+            if (copies != null) {
+                copies.close();
+                copies = null;
+            }
+            if (planeCopies != null) {
+                planeCopies.close();
+                planeCopies = null;
+            }
+            if (prefetchCopies != null) {
+                // Once opened, and after a tile being prefetched, without waiting here
+                prefetchCopies.thenAcceptAsync(BFReaderCopies::close, BFReaderCopies.workers);
+                prefetchCopies = null;
+            }
+            reader.close();
+            if (minimalMetadata) {
+                fullMetadata = null;
+            }
+        }
+    }
 
-    // Our uncaching internal reader. ImageReader and ReaderWrapper
-    // both implement IFormatReader but if you need an ImageReader-only
-    // method, access this. (You could also do (inefficiently)
-    // .getReader() on "reader" and cast it to ImageReader
-    // since that's what we use)
-    private final ImageReader nonCachingReader = new ImageReader();
+    // The fields below always point into the current "readers"
+    // and are swapped together by use()
+    private BFReaders readers;
+    private BFThumbnailWrapper readerWithThumbnailSizes;
+    private ReaderWrapper reader;
+    private ImageReader nonCachingReader;
 
     // As a summary, nonCachingReader is the reader
-    // which is wrapped by BFReaderWrapper or Memoizer
+    // which is wrapped by BFReaderWrapper or BFStateCacheReader
     // which is sometimes wrapped by readerWithThumbnailSizes
     // For performance, this library calls the readerWithThumbnailSizes
     // wrapper only when it needs thumbnail.
     // Please note that reinstantiating nonCachingReader requires
-    // reinstantiating "ReaderWrapper reader" (BFReaderWrapper or Memoizer).
+    // reinstantiating "ReaderWrapper reader" (BFReaderWrapper or BFStateCacheReader).
     // And reinstantiating the latter requires reinstantiating
-    // the readerWithThumbnailSizes
-    private final OMEXMLMetadataImpl metadata = new OMEXMLMetadataImpl();
+    // the readerWithThumbnailSizes. BFReaders does all of this.
+
+    // The file opened by BFOpen, null if none. Identifies the file
+    // for BFReaderPool and BFTileCache.
+    private BFFileKey currentKey = null;
+
+    // -Dbfbridge.metadata=minimal to only keep the metadata the
+    // bridge uses, see BFMinimalMetadata
+    private static final boolean minimalMetadata = "minimal".equals(System.getProperty("bfbridge.metadata"));
 
     // javac -Dbfbridge.cachedir=/tmp/cachedir for faster file loading
+    // see BFStateCacheReader
     private static final File cachedir;
 
     static {
@@ -140,19 +280,15 @@ public class BFBridge {
 
     // Initialize our instance reader
     {
-        if (cachedir == null) {
-            reader = new BFReaderWrapper(nonCachingReader);
-        } else {
-            reader = new Memoizer(nonCachingReader, cachedir);
-        }
-
-        // Use the easier resolution API
-        reader.setFlattenedResolutions(false);
-        reader.setMetadataStore(metadata);
-        // Save format-specific metadata as well?
-        // metadata.setOriginalMetadataPopulated(true);
+        BFReaders blank = BFReaderPool.takeBlank();
+        use(blank != null ? blank : new BFReaders());
+    }
 
-        readerWithThumbnailSizes = new BFThumbnailWrapper(reader);
+    private void use(BFReaders r) {
+        readers = r;
+        nonCachingReader = r.nonCachingReader;
+        reader = r.reader;
+        readerWithThumbnailSizes = r.readerWithThumbnailSizes;
     }
 
     private static final Charset charset = Charset.forName("UTF-8");
@@ -170,44 +306,178 @@ public class BFBridge {
     // How we use the communicationBuffer:
     // 1) read region, etc. write to it from the beginning and return bytes written
     // 2) read region negative, so write an error.
-    // to classify the error, see what code branch returns it
-    // to display a message, "lastErrorBytes" many bytes were written as error to
-    // communicationBuffer so display its that many bytes.
+    // to classify the error, see BFErrors for what the negative value means
+    // to display a message, call BFGetErrorLength, which writes the error to
+    // communicationBuffer and returns how many bytes to display.
     // communicationBuffer does not usually null terminate.
     // remember to: (std::string s).assign(ptr, size) or ptr[size] = 0;
 
     // functions that use communicationBuffer must call
     // communicationBuffer.rewind() before reading/writing
-    // If the last write to the communication buffer
-    // isn't an error, lastErrorBytes
-    // is not updated
-    private int lastErrorBytes = 0;
+    // Numbers in fixed layouts (tables, counts, stats) are little-endian
+    // whatever the order of communicationBuffer: go through littleEndian().
+    // Errors are only written to communicationBuffer when
+    // BFGetErrorLength is called, so a caller that only
+    // looks at the code (see BFErrors) doesn't pay for the text.
+    private int lastErrorCode = 0;
+    private String lastErrorMessage = null;
+    // Made into lastErrorMessage when first needed
+    private Throwable lastError = null;
+
+    // communicationBuffer from its start, little-endian, sharing its bytes
+    private ByteBuffer littleEndian() {
+        return communicationBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).rewind();
+    }
 
     void BFSetCommunicationBuffer(ByteBuffer b) {
         communicationBuffer = b;
     }
 
+    // Writes the last error to communicationBuffer and returns its length
     int BFGetErrorLength() {
-        return lastErrorBytes;
+        if (lastErrorMessage == null) {
+            lastErrorMessage = lastError == null ? "" : getStackTrace(lastError);
+            lastError = null;
+        }
+        byte[] errorBytes = lastErrorMessage.getBytes(charset);
+        // -1 to account for the null byte for security
+        int length = Math.min(errorBytes.length, Math.max(communicationBuffer.capacity() - 1, 0));
+        // Trim error message
+        communicationBuffer.rewind().put(errorBytes, 0, length);
+        return length;
+    }
+
+    // Latency, call and byte counts per operation and format,
+    // for all sessions. See BFStats.write for the layout.
+    // writes to communicationBuffer and returns the number of bytes written
+    int BFGetStats() {
+        int written = BFStats.write(communicationBuffer);
+        if (written < 0) {
+            return saveError(BFErrors.BUFFER_TOO_SMALL, "BFGetStats: buffer too small");
+        }
+        return written;
+    }
+
+    int BFResetStats() {
+        BFStats.reset();
+        BFErrors.resetCounts();
+        return 1;
+    }
+
+    // Format of the open file for BFStats, empty if none
+    private String statsFormat() {
+        if (currentKey == null) {
+            return "";
+        }
+        try {
+            return reader.getFormat();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    // Code of the last error, see BFErrors
+    int BFGetLastErrorCode() {
+        return lastErrorCode;
+    }
+
+    // Writes how many errors of each code there were, in all sessions:
+    // a little-endian long for -1, then -2 and so on.
+    // Returns the number of bytes written.
+    int BFGetErrorCounts() {
+        try {
+            int written = BFErrors.writeCounts(communicationBuffer);
+            if (written < 0) {
+                return saveError(BFErrors.BUFFER_TOO_SMALL, "BFGetErrorCounts: buffer too small");
+            }
+            return written;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // Sessions: so that one isolate can serve many threads,
+    // each thread (or request) gets its own BFBridge with its own
+    // readers, communicationBuffer and error, named by an integer handle.
+    // Calls on different sessions may run concurrently: what
+    // sessions share (BFReaderPool, BFTileCache, the decode workers)
+    // is synchronized. Calls on the same session must not overlap.
+    private static final ConcurrentHashMap<Integer, BFBridge> sessions = new ConcurrentHashMap<>();
+    private static final AtomicInteger lastSession = new AtomicInteger(0);
+
+    // Returns a new session handle, always positive
+    static int BFSessionCreate(ByteBuffer b) {
+        BFBridge session = new BFBridge();
+        session.BFSetCommunicationBuffer(b);
+        int handle = lastSession.incrementAndGet();
+        sessions.put(handle, session);
+        return handle;
+    }
+
+    // Creates a session and opens the file named by the first filenameLength
+    // bytes of b. Returns the handle, or the error code (see BFErrors)
+    // if the file couldn't be opened, in which case the error is at the
+    // start of b and null terminated.
+    static int BFSessionOpen(ByteBuffer b, int filenameLength) {
+        int handle = BFSessionCreate(b);
+        BFBridge session = sessions.get(handle);
+        int result = session.BFOpen(filenameLength);
+        if (result < 0) {
+            int errorLength = session.BFGetErrorLength();
+            BFSessionDestroy(handle);
+            if (errorLength < b.capacity()) {
+                b.put(errorLength, (byte) 0);
+            }
+            return result;
+        }
+        return handle;
+    }
+
+    // null if there's no such session
+    static BFBridge BFSessionGet(int handle) {
+        return sessions.get(handle);
+    }
+
+    // Closes the session's file (into the pool if enabled) and forgets it
+    static int BFSessionDestroy(int handle) {
+        BFBridge session = sessions.remove(handle);
+        if (session == null) {
+            return 0;
+        }
+        session.close();
+        return 1;
     }
 
     // Please note: this closes the previous file
     // Input Parameter: first filenameLength bytes of communicationBuffer.
     int BFIsCompatible(int filenameLength) {
+        BFEvents.FormatProbe event = new BFEvents.FormatProbe();
+        if (event.isEnabled()) {
+            event.path = peekString(filenameLength);
+        }
+        event.begin();
+        long start = System.nanoTime();
+        int result = isCompatible(filenameLength);
+        BFStats.record(BFStats.IS_COMPATIBLE, "", start, result);
+        event.result = result;
+        event.commit();
+        return result;
+    }
+
+    private int isCompatible(int filenameLength) {
         try {
             byte[] filename = new byte[filenameLength];
             communicationBuffer.rewind().get(filename);
             // If we didn't have this line, I would change
             // "private ImageReader reader" to
             // "private IFormatReader reader"
-            // and we would access only through the WrappedReader/Memoizer
+            // and we would access only through the WrappedReader/BFStateCacheReader
             // and not the ImageReader
 
             close();
-            return nonCachingReader.getReader(new String(filename)) != null ? 1 : 0;
+            return BFFormatDetector.isCompatible(nonCachingReader, new String(filename)) ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         } finally {
             close();
         }
@@ -217,23 +487,87 @@ public class BFBridge {
         try {
             return reader.getCurrentFile() != null ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
     // Input Parameter: first filenameLength bytes of communicationBuffer
     int BFOpen(int filenameLength) {
+        BFEvents.Open event = new BFEvents.Open();
+        if (event.isEnabled()) {
+            event.path = peekString(filenameLength);
+        }
+        event.begin();
+        long start = System.nanoTime();
+        openedFromPool = false;
+        int result = open(filenameLength);
+        String format = statsFormat();
+        BFStats.record(BFStats.OPEN, format, start, result);
+        event.end();
+        if (event.shouldCommit()) {
+            event.format = format;
+            event.fromPool = openedFromPool;
+            event.result = result;
+            event.commit();
+        }
+        return result;
+    }
+
+    // For BFEvents.Open
+    private boolean openedFromPool = false;
+
+    // The first length bytes of communicationBuffer as a string,
+    // such as the filename a call is about to read
+    private String peekString(int length) {
+        byte[] bytes = new byte[length];
+        communicationBuffer.get(0, bytes);
+        return new String(bytes);
+    }
+
+    private void setId(String path) throws Exception {
+        BFEvents.SetId event = new BFEvents.SetId();
+        event.begin();
+        try {
+            reader.setId(path);
+        } finally {
+            event.path = path;
+            event.commit();
+        }
+    }
+
+    private int open(int filenameLength) {
         try {
             byte[] filename = new byte[filenameLength];
             communicationBuffer.rewind().get(filename);
+            String path = new String(filename);
             close();
-            reader.setId(new String(filename));
+            BFFileKey key = BFFileKey.of(path);
+            BFTileCache.invalidateStale(key);
+            if (BFReaderPool.isEnabled()) {
+                BFReaders pooled = BFReaderPool.take(key);
+                if (pooled != null) {
+                    // Our current readers have no file open
+                    BFReaderPool.discard(readers);
+                    use(pooled);
+                    openedFromPool = true;
+                    // Pooled files remember where the previous user left them
+                    reader.setSeries(0);
+                    reader.setResolution(0);
+                } else {
+                    setId(path);
+                }
+                currentKey = key;
+                BFFormatDetector.putVerdict(key, true);
+                return 1;
+            }
+            setId(path);
+            currentKey = key;
+            BFFormatDetector.putVerdict(key, true);
             return 1;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
+            int code = saveError(e);
             close();
-            return -1;
+            return code;
         }
     }
 
@@ -244,8 +578,7 @@ public class BFBridge {
             communicationBuffer.rewind().put(formatBytes);
             return formatBytes.length;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -259,8 +592,7 @@ public class BFBridge {
             close();
             return reader.isSingleFile(new String(filename)) ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         } finally {
             close();
         }
@@ -280,8 +612,7 @@ public class BFBridge {
                 return characters.length;
             }
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -294,8 +625,7 @@ public class BFBridge {
             for (String file : files) {
                 byte[] characters = file.getBytes(charset);
                 if (characters.length + 2 > communicationBuffer.capacity()) {
-                    saveError("Too long");
-                    return -2;
+                    return saveError(BFErrors.BUFFER_TOO_SMALL, "Too long");
                 }
                 communicationBuffer.put(characters);
                 communicationBuffer.put((byte) 0);
@@ -303,18 +633,24 @@ public class BFBridge {
             }
             return charI;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
+    // If the pool is enabled the file is kept open there
+    // so that it can be reopened quickly
     int BFClose() {
         try {
-            reader.close();
+            if (currentKey != null && BFReaderPool.isEnabled()) {
+                close();
+                return 1;
+            }
+            forgetFile();
+            currentKey = null;
+            readers.close();
             return 1;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -322,8 +658,7 @@ public class BFBridge {
         try {
             return reader.getSeriesCount();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -331,11 +666,13 @@ public class BFBridge {
     // A single image or a multilayer pyramid.
     int BFSetCurrentSeries(int no) {
         try {
+            if (no < 0 || no >= reader.getSeriesCount()) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFSetCurrentSeries: no such series");
+            }
             reader.setSeries(no);
             return 1;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -346,20 +683,19 @@ public class BFBridge {
             // This method returns resolution counts for the current series
             return reader.getResolutionCount();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
     int BFSetCurrentResolution(int resIndex) {
         try {
-            // Precondition: The caller must check that at least 0 and less than
-            // resolutionCount
+            if (resIndex < 0 || resIndex >= reader.getResolutionCount()) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFSetCurrentResolution: no such resolution");
+            }
             reader.setResolution(resIndex);
             return 1;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -374,7 +710,7 @@ public class BFBridge {
      * reader.setCoreIndex(resIndex);
      * return 1;
      * } catch (Exception e) {
-     * saveError(getStackTrace(e));
+     * saveError(e);
      * return -1;
      * }
      * }
@@ -388,8 +724,7 @@ public class BFBridge {
             // For current resolution
             return reader.getSizeX();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -397,8 +732,7 @@ public class BFBridge {
         try {
             return reader.getSizeY();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -406,8 +740,7 @@ public class BFBridge {
         try {
             return reader.getSizeC();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -415,8 +748,7 @@ public class BFBridge {
         try {
             return reader.getSizeZ();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -424,8 +756,7 @@ public class BFBridge {
         try {
             return reader.getSizeT();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -433,8 +764,7 @@ public class BFBridge {
         try {
             return reader.getEffectiveSizeC();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -448,8 +778,7 @@ public class BFBridge {
         try {
             return reader.getImageCount();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -460,8 +789,7 @@ public class BFBridge {
             communicationBuffer.rewind().put(strBytes);
             return strBytes.length;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -469,8 +797,7 @@ public class BFBridge {
         try {
             return reader.isOrderCertain() ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -478,8 +805,7 @@ public class BFBridge {
         try {
             return reader.getOptimalTileWidth();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -487,8 +813,7 @@ public class BFBridge {
         try {
             return reader.getOptimalTileHeight();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -500,8 +825,7 @@ public class BFBridge {
             // https://github.com/ome/bioformats/blob/9cb6cfaaa5361bcc4ed9f9841f2a4caa29aad6c7/components/formats-api/src/loci/formats/FormatTools.java#L1507
             return reader.getPixelType();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -515,8 +839,7 @@ public class BFBridge {
         try {
             return reader.getBitsPerPixel();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -525,8 +848,7 @@ public class BFBridge {
         try {
             return FormatTools.getBytesPerPixel(reader.getPixelType());
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -535,8 +857,7 @@ public class BFBridge {
         try {
             return reader.getRGBChannelCount();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -546,8 +867,7 @@ public class BFBridge {
         try {
             return reader.isRGB() ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -555,8 +875,7 @@ public class BFBridge {
         try {
             return reader.isInterleaved() ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -564,8 +883,7 @@ public class BFBridge {
         try {
             return reader.isLittleEndian() ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -583,8 +901,7 @@ public class BFBridge {
         try {
             return reader.isFalseColor() ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -592,8 +909,7 @@ public class BFBridge {
         try {
             return reader.isIndexed() ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -604,8 +920,7 @@ public class BFBridge {
             int len = table.length;
             int sublen = table[0].length;
             if (sublen != 256) {
-                saveError("BFGet8BitLookupTable expected 256 rowlength");
-                return -2;
+                return saveError(BFErrors.UNSUPPORTED, "BFGet8BitLookupTable expected 256 rowlength");
             }
             byte[] table1D = new byte[len * sublen];
             for (int i = 0; i < len; i++) {
@@ -616,8 +931,7 @@ public class BFBridge {
             communicationBuffer.rewind().put(table1D);
             return len * sublen;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -628,8 +942,7 @@ public class BFBridge {
             int len = table.length;
             int sublen = table[0].length;
             if (sublen != 65536) {
-                saveError("BFGet16BitLookupTable expected 65536 rowlength");
-                return -2;
+                return saveError(BFErrors.UNSUPPORTED, "BFGet16BitLookupTable expected 65536 rowlength");
             }
             short[] table1D = new short[len * sublen];
             for (int i = 0; i < len; i++) {
@@ -643,40 +956,864 @@ public class BFBridge {
             }
             return 2 * len * sublen;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
-    // plane is 0, default
+    // Tiles are decoded into these and then copied to communicationBuffer.
+    // openBytes with a preallocated array needs the exact size
+    // (see BFOpenBytes) so keep one array per recently used size:
+    // interior tiles share one size and edge tiles add a few more.
+    // In steady state this means no allocation per tile;
+    // scratchBytesAllocated lets callers and benchmarks check that.
+    private static final int maxScratchArrays = 4;
+    private final LinkedHashMap<Integer, byte[]> scratchArrays = new LinkedHashMap<>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > maxScratchArrays;
+        }
+    };
+    private long scratchBytesAllocated = 0;
+
+    private byte[] getScratchArray(int size) {
+        byte[] array = scratchArrays.get(size);
+        if (array == null) {
+            array = new byte[size];
+            scratchArrays.put(size, array);
+            scratchBytesAllocated += size;
+        }
+        return array;
+    }
+
+    // Total bytes of scratch arrays this instance allocated for tiles
+    long BFGetScratchBytesAllocated() {
+        return scratchBytesAllocated;
+    }
+
+    // plane is 0 for single plane images, otherwise 0 to BFGetImageCount() - 1
     // writes to communicationBuffer and returns the number of bytes written
     int BFOpenBytes(int plane, int x, int y, int w, int h) {
+        BFEvents.TileRead event = new BFEvents.TileRead();
+        event.begin();
+        long start = System.nanoTime();
+        int result = openBytes(plane, x, y, w, h);
+        String format = statsFormat();
+        BFStats.record(BFStats.OPEN_BYTES, format, start, result);
+        event.end();
+        if (event.shouldCommit()) {
+            event.series = reader.getSeries();
+            event.resolution = reader.getResolution();
+            event.plane = plane;
+            event.x = x;
+            event.y = y;
+            event.width = w;
+            event.height = h;
+            event.bytes = Math.max(result, 0);
+            event.format = format;
+            event.result = result;
+            event.commit();
+        }
+        return result;
+    }
+
+    private int openBytes(int plane, int x, int y, int w, int h) {
         try {
+            // Clients probing past the edge is common, so answer
+            // without letting the reader throw
+            if (plane < 0 || plane >= reader.getImageCount() || x < 0 || y < 0 || w <= 0 || h <= 0
+                    || x + w > reader.getSizeX() || y + h > reader.getSizeY()) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFOpenBytes: region or plane outside the image");
+            }
+            // Check first so that we don't decode a tile we can't return
+            // https://github.com/ome/bioformats/blob/4a08bfd5334323e99ad57de00e41cd15706164eb/components/formats-api/src/loci/formats/FormatReader.java#L906
+            // https://downloads.openmicroscopy.org/bio-formats/6.13.0/api/loci/formats/ImageReader.html#openBytes-int-byte:A-
+            int size = w * h * FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
+            if (size > communicationBuffer.capacity()) {
+                return saveError(BFErrors.BUFFER_TOO_SMALL, "Requested tile too big; must be at most " + communicationBuffer.capacity()
+                        + " bytes but wanted " + size);
+            }
             // https://github.com/ome/bioformats/issues/4058 means that
             // openBytes wasn't designed to copy to a preallocated byte array
             // unless it had the exact size and not greater
-            byte[] bytes = reader.openBytes(0, x, y, w, h);
+            // Bio-Formats only decodes to byte[] so communicationBuffer,
+            // being direct, still needs this one copy
+            int written = readTile(plane, x, y, w, h, size, 0);
+            prefetch(plane, x, y, w, h);
+            if (outputFormat != BFEncoder.RAW) {
+                byte[] pixels = getScratchArray(size);
+                communicationBuffer.rewind().get(pixels, 0, size);
+                return writeEncoded(pixels, w, h, reader.getPixelType(), reader.getRGBChannelCount(),
+                        reader.isInterleaved());
+            }
+            return written;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // Writes a region of the current resolution to communicationBuffer
+    // at offset, from BFTileCache if possible. Returns bytes written.
+    private int readTile(int plane, int x, int y, int w, int h, int size, int offset) throws Exception {
+        BFTileCache.Key key = null;
+        if (currentKey != null && BFTileCache.isEnabled()) {
+            key = new BFTileCache.Key(currentKey, reader.getSeries(), reader.getResolution(), plane, x, y, w, h);
+            int cached = BFTileCache.get(key, communicationBuffer, offset);
+            if (cached >= 0) {
+                return cached;
+            }
+        }
+        byte[] bytes = openTile(plane, x, y, w, h, size);
+        communicationBuffer.position(offset);
+        communicationBuffer.put(bytes, 0, size);
+        if (key != null) {
+            BFTileCache.put(key, bytes, size);
+        }
+        return size;
+    }
+
+    // Like readTile but for use here: returns an array whose first
+    // bytes are the tile, reused by the next call
+    private byte[] readTileArray(int plane, int x, int y, int w, int h) throws Exception {
+        int size = w * h * FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
+        BFTileCache.Key key = null;
+        if (currentKey != null && BFTileCache.isEnabled()) {
+            key = new BFTileCache.Key(currentKey, reader.getSeries(), reader.getResolution(), plane, x, y, w, h);
+            byte[] bytes = getScratchArray(size);
+            if (BFTileCache.get(key, ByteBuffer.wrap(bytes), 0) >= 0) {
+                return bytes;
+            }
+        }
+        byte[] bytes = openTile(plane, x, y, w, h, size);
+        if (key != null) {
+            BFTileCache.put(key, bytes, size);
+        }
+        return bytes;
+    }
+
+    // Decodes a region of the current resolution. The first "size"
+    // bytes of the returned array are the tile; the array is reused
+    // by the next call.
+    private byte[] openTile(int plane, int x, int y, int w, int h, int size) throws Exception {
+        BFEvents.Decode event = new BFEvents.Decode();
+        event.begin();
+        byte[] bytes = getScratchArray(size);
+        event.cropped = cropFromNativeTile(plane, x, y, w, h, bytes);
+        if (!event.cropped) {
+            reader.openBytes(plane, bytes, x, y, w, h);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.plane = plane;
+            event.x = x;
+            event.y = y;
+            event.width = w;
+            event.height = h;
+            event.commit();
+        }
+        return bytes;
+    }
+
+    // Clients ask for 256x256 tiles but many files store 512x512
+    // or bigger tiles, and for each client tile Bio-Formats decodes
+    // the whole stored tile and crops it. So when a request falls
+    // inside one stored tile we decode that tile once, keep it for
+    // a few requests and crop the next requests from it.
+    // -Dbfbridge.nativetiles=0 disables.
+    private static final int maxNativeTiles = Integer.getInteger("bfbridge.nativetiles", 4);
+    // Beyond this we'd rather decode just what was asked for
+    private static final int maxNativeTileBytes = 32 << 20;
+
+    private record NativeTileKey(int series, int resolution, int plane, int column, int row) {
+    }
+
+    private final LinkedHashMap<NativeTileKey, byte[]> nativeTiles = new LinkedHashMap<>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<NativeTileKey, byte[]> eldest) {
+            return size() > maxNativeTiles;
+        }
+    };
+
+    // The stored tile a region falls inside, as x, y, width and height
+    // (smaller at the edges), or null if the region isn't worth
+    // cropping from one
+    private int[] nativeBlock(int x, int y, int w, int h) {
+        if (maxNativeTiles <= 0 || w <= 0 || h <= 0) {
+            return null;
+        }
+        int tileWidth = reader.getOptimalTileWidth();
+        int tileHeight = reader.getOptimalTileHeight();
+        if (tileWidth <= 0 || tileHeight <= 0 || (tileWidth <= w && tileHeight <= h)) {
+            return null;
+        }
+        int column = x / tileWidth;
+        int row = y / tileHeight;
+        if (x < 0 || y < 0 || (x + w - 1) / tileWidth != column || (y + h - 1) / tileHeight != row) {
+            return null;
+        }
+        int tileX = column * tileWidth;
+        int tileY = row * tileHeight;
+        int blockWidth = Math.min(tileWidth, reader.getSizeX() - tileX);
+        int blockHeight = Math.min(tileHeight, reader.getSizeY() - tileY);
+        if (x + w > tileX + blockWidth || y + h > tileY + blockHeight) {
+            // Out of bounds; let openBytes report it
+            return null;
+        }
+        int bytesPerPixel = FormatTools.getBytesPerPixel(reader.getPixelType());
+        int channels = reader.getRGBChannelCount();
+        if ((long) blockWidth * blockHeight * bytesPerPixel * channels > maxNativeTileBytes) {
+            return null;
+        }
+        return new int[] { tileX, tileY, blockWidth, blockHeight };
+    }
+
+    // Fills dest with the region if it can be cropped from a stored tile
+    private boolean cropFromNativeTile(int plane, int x, int y, int w, int h, byte[] dest) throws Exception {
+        int[] stored = nativeBlock(x, y, w, h);
+        if (stored == null) {
+            return false;
+        }
+        NativeTileKey key = new NativeTileKey(reader.getSeries(), reader.getResolution(), plane,
+                stored[0] / reader.getOptimalTileWidth(), stored[1] / reader.getOptimalTileHeight());
+        byte[] block = nativeTiles.get(key);
+        if (block == null) {
+            block = reader.openBytes(plane, stored[0], stored[1], stored[2], stored[3]);
+            nativeTiles.put(key, block);
+        }
+        crop(block, stored[2], stored[3], x - stored[0], y - stored[1], w, h,
+                FormatTools.getBytesPerPixel(reader.getPixelType()), reader.getRGBChannelCount(),
+                reader.isInterleaved(), dest);
+        return true;
+    }
+
+    // Copies the w x h region at (offsetX, offsetY) of a decoded block
+    // to the start of dest. Same layout as openBytes: rows of pixels,
+    // and if not interleaved, one such image per channel.
+    private static void crop(byte[] block, int blockWidth, int blockHeight, int offsetX, int offsetY, int w, int h,
+            int bytesPerPixel, int channels, boolean interleaved, byte[] dest) {
+        if (interleaved) {
+            int pixelBytes = bytesPerPixel * channels;
+            for (int i = 0; i < h; i++) {
+                System.arraycopy(block, ((offsetY + i) * blockWidth + offsetX) * pixelBytes,
+                        dest, i * w * pixelBytes, w * pixelBytes);
+            }
+        } else {
+            for (int c = 0; c < channels; c++) {
+                int blockPlane = c * blockWidth * blockHeight * bytesPerPixel;
+                int destPlane = c * w * h * bytesPerPixel;
+                for (int i = 0; i < h; i++) {
+                    System.arraycopy(block, blockPlane + ((offsetY + i) * blockWidth + offsetX) * bytesPerPixel,
+                            dest, destPlane + i * w * bytesPerPixel, w * bytesPerPixel);
+                }
+            }
+        }
+    }
+
+    // Queues a decode for the BFOpenBytesBatch workers.
+    // Cancelling the result skips the decode if it hasn't started.
+    private static CompletableFuture<byte[]> decodeLater(ConcurrentLinkedQueue<Runnable> queued,
+            Callable<byte[]> decode) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        queued.add(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(decode.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    // Reads many tiles of the current resolution in one call.
+    // Input: count rectangles at the start of communicationBuffer,
+    // each as five ints: plane, x, y, w, h.
+    // Output: a table of count entries, each three ints:
+    // status, offset, length; followed by the tile bytes.
+    // Offsets are from the start of communicationBuffer.
+    // status 1: success
+    // status -1: this tile couldn't be read (no error message is saved
+    // since the error would overwrite the other tiles)
+    // status -2: this tile didn't fit in the rest of the buffer
+    // Ints are little-endian, in and out.
+    // Returns the total number of bytes written, including the table.
+    int BFOpenBytesBatch(int count) {
+        try {
+            int tableLength = count * 3 * 4;
+            if (count * 5 * 4 > communicationBuffer.capacity() || tableLength > communicationBuffer.capacity()) {
+                return saveError(BFErrors.BUFFER_TOO_SMALL, "BFOpenBytesBatch: " + count + " tiles don't fit in buffer of length "
+                        + communicationBuffer.capacity());
+            }
+            int[] rects = new int[count * 5];
+            ByteBuffer input = littleEndian();
+            for (int i = 0; i < rects.length; i++) {
+                rects[i] = input.getInt();
+            }
+
+            // Read tiles in the same native tile close together,
+            // in storage order, instead of in the order requested
+            int tileWidth = Math.max(reader.getOptimalTileWidth(), 1);
+            int tileHeight = Math.max(reader.getOptimalTileHeight(), 1);
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator
+                    .<Integer>comparingInt(i -> rects[i * 5])
+                    .thenComparingInt(i -> rects[i * 5 + 2] / tileHeight)
+                    .thenComparingInt(i -> rects[i * 5 + 1] / tileWidth)
+                    .thenComparingInt(i -> rects[i * 5 + 2])
+                    .thenComparingInt(i -> rects[i * 5 + 1]));
+
+            int pixelBytes = FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
+
+            // With parallel decoding, queue every uncached tile now
+            // and write them in order as they finish. At most one
+            // worker per copy drains the queue: more would only block
+            // waiting for a copy and hold workers other sessions need.
+            // Tiles inside the same stored tile are next to each other
+            // in order, and like cropFromNativeTile we decode that
+            // stored tile once and crop them all from it.
+            BFReaderCopies copies = count > 1 ? getCopies() : null;
+            ArrayList<Future<byte[]>> decoding = new ArrayList<>(Collections.nCopies(count, null));
+            ConcurrentLinkedQueue<Runnable> queued = new ConcurrentLinkedQueue<>();
+            if (copies != null) {
+                int series = reader.getSeries();
+                int resolution = reader.getResolution();
+                int bytesPerPixel = FormatTools.getBytesPerPixel(reader.getPixelType());
+                int channels = reader.getRGBChannelCount();
+                boolean interleaved = reader.isInterleaved();
+                ArrayList<Integer> wanted = new ArrayList<>();
+                for (int i : order) {
+                    int plane = rects[i * 5];
+                    int x = rects[i * 5 + 1];
+                    int y = rects[i * 5 + 2];
+                    int w = rects[i * 5 + 3];
+                    int h = rects[i * 5 + 4];
+                    if ((long) w * h * pixelBytes > communicationBuffer.capacity() - tableLength
+                            || BFTileCache.contains(new BFTileCache.Key(currentKey, series, resolution, plane, x, y, w, h))) {
+                        continue;
+                    }
+                    wanted.add(i);
+                }
+                int next = 0;
+                while (next < wanted.size()) {
+                    int first = wanted.get(next);
+                    int plane = rects[first * 5];
+                    int[] block = nativeBlock(rects[first * 5 + 1], rects[first * 5 + 2],
+                            rects[first * 5 + 3], rects[first * 5 + 4]);
+                    int end = next + 1;
+                    while (block != null && end < wanted.size()) {
+                        int i = wanted.get(end);
+                        if (rects[i * 5] != plane || !Arrays.equals(block, nativeBlock(rects[i * 5 + 1],
+                                rects[i * 5 + 2], rects[i * 5 + 3], rects[i * 5 + 4]))) {
+                            break;
+                        }
+                        end++;
+                    }
+                    if (end - next == 1) {
+                        int x = rects[first * 5 + 1];
+                        int y = rects[first * 5 + 2];
+                        int w = rects[first * 5 + 3];
+                        int h = rects[first * 5 + 4];
+                        decoding.set(first, decodeLater(queued,
+                                () -> copies.openBytes(series, resolution, plane, x, y, w, h)));
+                    } else {
+                        CompletableFuture<byte[]> stored = decodeLater(queued,
+                                () -> copies.openBytes(series, resolution, plane, block[0], block[1], block[2], block[3]));
+                        for (int k = next; k < end; k++) {
+                            int i = wanted.get(k);
+                            int w = rects[i * 5 + 3];
+                            int h = rects[i * 5 + 4];
+                            int offsetX = rects[i * 5 + 1] - block[0];
+                            int offsetY = rects[i * 5 + 2] - block[1];
+                            decoding.set(i, stored.thenApply(b -> {
+                                byte[] tile = new byte[w * h * pixelBytes];
+                                crop(b, block[2], block[3], offsetX, offsetY, w, h, bytesPerPixel, channels,
+                                        interleaved, tile);
+                                return tile;
+                            }));
+                        }
+                    }
+                    next = end;
+                }
+                // Closed copies have size 0 but the tasks must still fail
+                int drainers = Math.min(Math.max(copies.size(), 1), queued.size());
+                for (int d = 0; d < drainers; d++) {
+                    BFReaderCopies.workers.submit(() -> {
+                        Runnable task;
+                        while ((task = queued.poll()) != null) {
+                            task.run();
+                        }
+                    });
+                }
+            }
+
+            int[] table = new int[count * 3];
+            int offset = tableLength;
+            for (int i : order) {
+                int plane = rects[i * 5];
+                int x = rects[i * 5 + 1];
+                int y = rects[i * 5 + 2];
+                int w = rects[i * 5 + 3];
+                int h = rects[i * 5 + 4];
+                long size = (long) w * h * pixelBytes;
+                if (size > communicationBuffer.capacity() - offset) {
+                    table[i * 3] = -2;
+                    if (decoding.get(i) != null) {
+                        decoding.get(i).cancel(false);
+                    }
+                    continue;
+                }
+                try {
+                    if (decoding.get(i) != null) {
+                        byte[] bytes = decoding.get(i).get();
+                        communicationBuffer.position(offset);
+                        communicationBuffer.put(bytes, 0, (int) size);
+                        if (BFTileCache.isEnabled()) {
+                            BFTileCache.put(new BFTileCache.Key(currentKey, reader.getSeries(), reader.getResolution(),
+                                    plane, x, y, w, h), bytes, (int) size);
+                        }
+                    } else {
+                        readTile(plane, x, y, w, h, (int) size, offset);
+                    }
+                } catch (Exception e) {
+                    table[i * 3] = -1;
+                    continue;
+                }
+                table[i * 3] = 1;
+                table[i * 3 + 1] = offset;
+                table[i * 3 + 2] = (int) size;
+                offset += size;
+            }
+
+            ByteBuffer output = littleEndian();
+            for (int i = 0; i < table.length; i++) {
+                output.putInt(table[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                if (table[i * 3] == 1) {
+                    prefetch(rects[i * 5], rects[i * 5 + 1], rects[i * 5 + 2], rects[i * 5 + 3], rects[i * 5 + 4]);
+                }
+            }
+            return offset;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // How many readers decode BFOpenBytesBatch tiles at once.
+    // 1 (default) decodes everything on the calling thread.
+    private int parallelism = 1;
+
+    // Makes batched reads use up to n extra readers for the current file,
+    // opened on the next batch. They stay open until the file is closed
+    // and cost memory and file descriptors like the main reader.
+    int BFSetParallelism(int n) {
+        try {
+            parallelism = Math.max(n, 1);
+            return 1;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // Up to how many predicted tiles may be decoding in the background.
+    // 0 disables prefetching. Needs the tile cache, since that's
+    // where prefetched tiles go.
+    private int prefetchLimit = Integer.getInteger("bfbridge.prefetch", 0);
+    private BFPrefetcher prefetcher = null;
+
+    int BFSetPrefetch(int maxTiles) {
+        // The next tile read starts a prefetcher with the new limit
+        stopPrefetcher();
+        prefetchLimit = Math.max(maxTiles, 0);
+        return 1;
+    }
+
+    // Tells the prefetcher about a tile the client read
+    private void prefetch(int plane, int x, int y, int w, int h) {
+        if (prefetchLimit <= 0 || currentKey == null || !BFTileCache.isEnabled()) {
+            return;
+        }
+        try {
+            int series = reader.getSeries();
+            if (prefetcher != null && prefetcher.getSeries() != series) {
+                stopPrefetcher();
+            }
+            if (prefetcher == null) {
+                int resolution = reader.getResolution();
+                int resCount = reader.getResolutionCount();
+                int[] sizeX = new int[resCount];
+                int[] sizeY = new int[resCount];
+                for (int i = 0; i < resCount; i++) {
+                    reader.setResolution(i);
+                    sizeX[i] = reader.getSizeX();
+                    sizeY[i] = reader.getSizeY();
+                }
+                reader.setResolution(resolution);
+                prefetcher = new BFPrefetcher(readers.prefetchCopies(), currentKey, series,
+                        sizeX, sizeY, prefetchLimit);
+            }
+            prefetcher.observe(reader.getResolution(), plane, x, y, w, h);
+        } catch (Exception e) {
+            // Prefetching is only an optimization
+            stopPrefetcher();
+        }
+    }
+
+    private void stopPrefetcher() {
+        if (prefetcher != null) {
+            prefetcher.close();
+            prefetcher = null;
+        }
+    }
+
+    // null if parallel decoding is off or no file is open
+    private BFReaderCopies getCopies() throws Exception {
+        if (parallelism <= 1 || currentKey == null) {
+            return null;
+        }
+        if (readers.copies != null && readers.copies.size() != parallelism) {
+            readers.copies.close();
+            readers.copies = null;
+        }
+        if (readers.copies == null) {
+            readers.copies = new BFReaderCopies(reader.getCurrentFile(), parallelism);
+        }
+        return readers.copies;
+    }
+
+    // Writes tile cache hits, misses, entries, bytes used and byte budget
+    // as little-endian 8-byte integers and returns the number of bytes written
+    int BFGetTileCacheStats() {
+        try {
+            int written = BFTileCache.writeStats(communicationBuffer);
+            if (written < 0) {
+                return saveError(BFErrors.BUFFER_TOO_SMALL, "BFGetTileCacheStats: buffer too small");
+            }
+            return written;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // What BFOpenBytes, BFOpenThumbBytes and BFOpenScaledRegion return:
+    // 0: raw pixels (default)
+    // 1: JPEG, for 8-bit samples with 1, 3 or 4 channels (alpha is dropped)
+    // 2: PNG, for 8-bit or 16-bit samples with 1 to 4 channels, lossless.
+    // Signed samples are shifted to unsigned for PNG.
+    // BFOpenBytesBatch and plane streams always return raw pixels.
+    private int outputFormat = BFEncoder.RAW;
+    // JPEG quality, 1 to 100
+    private int outputQuality = 85;
+
+    // quality is only looked at for JPEG
+    int BFSetOutputFormat(int format, int quality) {
+        if (format < BFEncoder.RAW || format > BFEncoder.PNG) {
+            return saveError(BFErrors.INVALID_ARGUMENT, "BFSetOutputFormat: unknown format " + format);
+        }
+        if (format == BFEncoder.JPEG) {
+            if (quality < 1 || quality > 100) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFSetOutputFormat: quality " + quality
+                        + " is not between 1 and 100");
+            }
+            outputQuality = quality;
+        }
+        outputFormat = format;
+        return 1;
+    }
+
+    // Encodes pixels in openBytes layout to the output format,
+    // writes them to communicationBuffer and returns bytes written
+    private int writeEncoded(byte[] pixels, int width, int height, int pixelType, int channels,
+            boolean interleaved) throws Exception {
+        byte[] encoded = BFEncoder.encode(pixels, width, height, pixelType, channels, interleaved,
+                reader.isLittleEndian(), outputFormat, outputQuality);
+        if (encoded.length > communicationBuffer.capacity()) {
+            return saveError(BFErrors.BUFFER_TOO_SMALL, "Encoded image too big; must be at most " + communicationBuffer.capacity()
+                    + " bytes but was " + encoded.length);
+        }
+        communicationBuffer.rewind().put(encoded);
+        return encoded.length;
+    }
+
+    // Stored tiles of the open file, see BFOpenBytesPassthrough
+    private BFCompressedTiles compressedTiles = null;
+    // What the last BFOpenBytesPassthrough wrote, see BFSetOutputFormat
+    private int lastOutputFormat = BFEncoder.RAW;
+
+    // Like BFOpenBytes, but if the region is exactly one stored
+    // baseline JPEG tile, writes the stored JPEG without decoding it.
+    // Otherwise decodes as BFOpenBytes does, in the output format.
+    // Call BFGetLastOutputFormat to know which one was written.
+    // writes to communicationBuffer and returns the number of bytes written
+    int BFOpenBytesPassthrough(int plane, int x, int y, int w, int h) {
+        try {
+            if (currentKey != null) {
+                if (compressedTiles == null) {
+                    compressedTiles = new BFCompressedTiles(reader.getCurrentFile(),
+                            reader instanceof BFStateCacheReader ? ((BFStateCacheReader) reader).getJpegImages() : null);
+                }
+                byte[] jpeg = null;
+                try {
+                    jpeg = compressedTiles.getJPEG(reader, plane, x, y, w, h);
+                } catch (Exception e) {
+                    // Decoding below reports real problems with the file
+                }
+                if (jpeg != null && jpeg.length <= communicationBuffer.capacity()) {
+                    communicationBuffer.rewind().put(jpeg);
+                    lastOutputFormat = BFEncoder.JPEG;
+                    return jpeg.length;
+                }
+            }
+        } catch (Exception e) {
+            return saveError(e);
+        }
+        lastOutputFormat = outputFormat;
+        return BFOpenBytes(plane, x, y, w, h);
+    }
+
+    int BFGetLastOutputFormat() {
+        return lastOutputFormat;
+    }
+
+    // Reads the region x, y, w, h given in full resolution (resolution 0)
+    // coordinates of the current series, resized to outWidth by outHeight.
+    // Reads from the smallest resolution that still has at least as many
+    // pixels as the output, so zoomed out views don't decode the full
+    // resolution. Same pixel layout as BFOpenBytes. Regions too large to
+    // read at once are read and reduced a tile at a time.
+    // writes to communicationBuffer and returns the number of bytes written
+    int BFOpenScaledRegion(int plane, int x, int y, int w, int h, int outWidth, int outHeight) {
+        int resolution = -1;
+        try {
+            if (w <= 0 || h <= 0 || outWidth <= 0 || outHeight <= 0) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFOpenScaledRegion: sizes must be positive");
+            }
+            int pixelType = reader.getPixelType();
+            int channels = reader.getRGBChannelCount();
+            long outSize = (long) outWidth * outHeight * FormatTools.getBytesPerPixel(pixelType) * channels;
+            if (outSize > communicationBuffer.capacity()) {
+                return saveError(BFErrors.BUFFER_TOO_SMALL, "Requested region too big; must be at most " + communicationBuffer.capacity()
+                        + " bytes but wanted " + outSize);
+            }
+
+            resolution = reader.getResolution();
+            reader.setResolution(0);
+            int fullWidth = reader.getSizeX();
+            int fullHeight = reader.getSizeY();
+            // As BFOpenBytes does, rather than letting a level's reader fail
+            if (plane < 0 || plane >= reader.getImageCount() || x < 0 || y < 0
+                    || (long) x + w > fullWidth || (long) y + h > fullHeight) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFOpenScaledRegion: region or plane outside the image");
+            }
+            int best = 0;
+            for (int i = 1; i < reader.getResolutionCount(); i++) {
+                reader.setResolution(i);
+                double downsampleX = (double) fullWidth / reader.getSizeX();
+                double downsampleY = (double) fullHeight / reader.getSizeY();
+                if (downsampleX * outWidth > w || downsampleY * outHeight > h) {
+                    break;
+                }
+                best = i;
+            }
+            reader.setResolution(best);
+
+            double scaleX = (double) reader.getSizeX() / fullWidth;
+            double scaleY = (double) reader.getSizeY() / fullHeight;
+            int levelX = (int) Math.floor(x * scaleX);
+            int levelY = (int) Math.floor(y * scaleY);
+            int levelWidth = Math.max(Math.min((int) Math.ceil((x + w) * scaleX), reader.getSizeX()) - levelX, 1);
+            int levelHeight = Math.max(Math.min((int) Math.ceil((y + h) * scaleY), reader.getSizeY()) - levelY, 1);
+
+            long regionSize = (long) levelWidth * levelHeight * FormatTools.getBytesPerPixel(pixelType) * channels;
+            byte[] bytes;
+            if (regionSize <= maxScaledRegionRead) {
+                byte[] region = reader.openBytes(plane, levelX, levelY, levelWidth, levelHeight);
+                bytes = levelWidth == outWidth && levelHeight == outHeight ? region
+                        : BFScaler.resize(region, levelWidth, levelHeight, outWidth, outHeight, pixelType, channels,
+                                reader.isInterleaved(), reader.isLittleEndian());
+            } else if (levelWidth >= outWidth && levelHeight >= outHeight) {
+                // Such as an overview of a slide without small enough levels
+                bytes = downscaleByTiles(plane, levelX, levelY, levelWidth, levelHeight, outWidth, outHeight);
+            } else {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFOpenScaledRegion: region of " + regionSize
+                        + " bytes is too big to stretch to " + outWidth + "x" + outHeight);
+            }
+            if (outputFormat != BFEncoder.RAW) {
+                return writeEncoded(bytes, outWidth, outHeight, pixelType, channels, reader.isInterleaved());
+            }
             communicationBuffer.rewind().put(bytes);
             return bytes.length;
         } catch (Exception e) {
-            // Was it because of exceeding buffer?
-            // https://github.com/ome/bioformats/blob/4a08bfd5334323e99ad57de00e41cd15706164eb/components/formats-api/src/loci/formats/FormatReader.java#L906
-            // https://downloads.openmicroscopy.org/bio-formats/6.13.0/api/loci/formats/ImageReader.html#openBytes-int-byte:A-
-            try {
-                int size = w * h * FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
-                if (size > communicationBuffer.capacity()) {
-                    saveError("Requested tile too big; must be at most " + communicationBuffer.capacity()
-                            + " bytes but wanted " + size);
-                    return -2;
+            return saveError(e);
+        } finally {
+            if (resolution >= 0) {
+                try {
+                    reader.setResolution(resolution);
+                } catch (Exception e) {
                 }
-            } catch (Exception e2) {
-            } finally {
-                saveError(getStackTrace(e));
-                return -1;
             }
         }
     }
 
+    // Larger regions of BFOpenScaledRegion are read a tile at a time
+    private static final long maxScaledRegionRead = 64L << 20;
+
+    // Box filters a region of the current resolution into outWidth by
+    // outHeight, reading one tile at a time through the tile cache
+    // and native tile crop like BFOpenBytes
+    private byte[] downscaleByTiles(int plane, int x, int y, int w, int h, int outWidth, int outHeight)
+            throws Exception {
+        BFScaler.Downscaler downscaler = new BFScaler.Downscaler(w, h, outWidth, outHeight, reader.getPixelType(),
+                reader.getRGBChannelCount(), reader.isInterleaved(), reader.isLittleEndian());
+        // Whole tiles of the file when it has them, so that each is decoded once
+        int tileWidth = Math.max(reader.getOptimalTileWidth(), 256);
+        int tileHeight = Math.max(reader.getOptimalTileHeight(), 256);
+        int startX = x - x % tileWidth;
+        int startY = y - y % tileHeight;
+        for (int ty = startY; ty < y + h; ty += tileHeight) {
+            int top = Math.max(ty, y);
+            int bottom = Math.min(ty + tileHeight, y + h);
+            for (int tx = startX; tx < x + w; tx += tileWidth) {
+                int left = Math.max(tx, x);
+                int right = Math.min(tx + tileWidth, x + w);
+                byte[] tile = readTileArray(plane, left, top, right - left, bottom - top);
+                downscaler.add(tile, left - x, top - y, right - left, bottom - top);
+            }
+        }
+        return downscaler.result();
+    }
+
+    // Planes being read in the background, see BFPlaneStreamStart
+    private BFPlaneStream planeStream = null;
+    // Planes decoded ahead of the caller by a plane stream
+    private static final int planeStreamDepth = Integer.getInteger("bfbridge.planereadahead", 2);
+
+    // Starts reading the same region of the current series and resolution
+    // from planes firstPlane to lastPlane inclusive, in order.
+    // Call BFPlaneStreamNext to get each plane.
+    // Replaces the previous plane stream if any.
+    int BFPlaneStreamStart(int x, int y, int w, int h, int firstPlane, int lastPlane) {
+        try {
+            if (lastPlane < firstPlane) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFPlaneStreamStart: lastPlane " + lastPlane + " is before firstPlane " + firstPlane);
+            }
+            int[] planes = new int[lastPlane - firstPlane + 1];
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = firstPlane + i;
+            }
+            return startPlaneStream(x, y, w, h, planes);
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // Like BFPlaneStreamStart but for inclusive Z, C and T ranges.
+    // Planes are in T, then Z, then C order, so each step in Z or T
+    // gives all of its channels one after the other.
+    int BFPlaneStreamStartZCT(int x, int y, int w, int h,
+            int firstZ, int lastZ, int firstC, int lastC, int firstT, int lastT) {
+        try {
+            int count = Math.max(lastZ - firstZ + 1, 0) * Math.max(lastC - firstC + 1, 0)
+                    * Math.max(lastT - firstT + 1, 0);
+            if (count == 0) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFPlaneStreamStartZCT: empty range");
+            }
+            int[] planes = new int[count];
+            int i = 0;
+            for (int t = firstT; t <= lastT; t++) {
+                for (int z = firstZ; z <= lastZ; z++) {
+                    for (int c = firstC; c <= lastC; c++) {
+                        planes[i++] = reader.getIndex(z, c, t);
+                    }
+                }
+            }
+            return startPlaneStream(x, y, w, h, planes);
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    private int startPlaneStream(int x, int y, int w, int h, int[] planes) throws Exception {
+        stopPlaneStream();
+        // Here rather than in a worker on BFPlaneStreamNext
+        if (x < 0 || y < 0 || w <= 0 || h <= 0
+                || (long) x + w > reader.getSizeX() || (long) y + h > reader.getSizeY()) {
+            return saveError(BFErrors.INVALID_ARGUMENT, "BFPlaneStreamStart: region outside the image");
+        }
+        for (int plane : planes) {
+            if (plane < 0 || plane >= reader.getImageCount()) {
+                return saveError(BFErrors.INVALID_ARGUMENT, "BFPlaneStreamStart: no plane " + plane);
+            }
+        }
+        long size = (long) w * h * FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
+        if (size > communicationBuffer.capacity()) {
+            return saveError(BFErrors.BUFFER_TOO_SMALL, "Requested region too big; must be at most " + communicationBuffer.capacity()
+                    + " bytes but wanted " + size);
+        }
+        BFReaderCopies copies = getPlaneCopies(Math.min(planeStreamDepth, planes.length));
+        planeStream = new BFPlaneStream(copies, reader.getSeries(),
+                reader.getResolution(), x, y, w, h, planes, Math.max(planeStreamDepth, parallelism));
+        return 1;
+    }
+
+    // Restarting a stream on the same file doesn't open new copies
+    private BFReaderCopies getPlaneCopies(int count) throws Exception {
+        BFReaderCopies copies = getCopies();
+        if (copies != null) {
+            return copies;
+        }
+        count = Math.max(count, 1);
+        if (readers.planeCopies != null && readers.planeCopies.size() < count) {
+            readers.planeCopies.close();
+            readers.planeCopies = null;
+        }
+        if (readers.planeCopies == null) {
+            readers.planeCopies = new BFReaderCopies(reader.getCurrentFile(), count);
+        }
+        return readers.planeCopies;
+    }
+
+    // Writes the next plane of the plane stream to communicationBuffer
+    // and returns the number of bytes written, or 0 when all planes were read.
+    // Call BFPlaneStreamGetNextPlane before this to know which plane it is.
+    int BFPlaneStreamNext() {
+        try {
+            if (planeStream == null) {
+                return 0;
+            }
+            byte[] bytes = planeStream.next();
+            if (bytes == null) {
+                stopPlaneStream();
+                return 0;
+            }
+            communicationBuffer.rewind().put(bytes);
+            return bytes.length;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // Plane index that BFPlaneStreamNext will write next, -1 if none
+    int BFPlaneStreamGetNextPlane() {
+        return planeStream == null ? -1 : planeStream.nextPlane();
+    }
+
+    int BFPlaneStreamStop() {
+        stopPlaneStream();
+        return 1;
+    }
+
+    private void stopPlaneStream() {
+        if (planeStream != null) {
+            planeStream.close();
+            planeStream = null;
+        }
+    }
+
     // warning: changes the current resolution level
     // takes exact width and height.
     // the caller should ensure the correct aspect ratio.
@@ -684,6 +1821,25 @@ public class BFBridge {
     // prepares 3 channel or 4 channel, same sample format
     // and bitlength (but made unsigned if was int8 or int16 or int32)
     int BFOpenThumbBytes(int plane, int width, int height) {
+        BFEvents.Thumbnail event = new BFEvents.Thumbnail();
+        event.begin();
+        long start = System.nanoTime();
+        int result = openThumbBytes(plane, width, height);
+        String format = statsFormat();
+        BFStats.record(BFStats.OPEN_THUMB_BYTES, format, start, result);
+        event.end();
+        if (event.shouldCommit()) {
+            event.plane = plane;
+            event.width = width;
+            event.height = height;
+            event.bytes = Math.max(result, 0);
+            event.format = format;
+            event.commit();
+        }
+        return result;
+    }
+
+    private int openThumbBytes(int plane, int width, int height) {
         try {
             /*
              * float yOverX = reader.getSizeY() / reader.getSizeX();
@@ -700,15 +1856,47 @@ public class BFBridge {
             int resCount = reader.getResolutionCount();
             reader.setResolution(resCount - 1);
 
-            // Using class's openThumbBytes
-            // instead of FormatTools.openThumbBytes 
-            // might break our custom thumbnail sizes?
-            byte[] bytes = FormatTools.openThumbBytes(readerWithThumbnailSizes, plane);
+            byte[] bytes = null;
+            BFTileCache.Key key = null;
+            if (currentKey != null && BFTileCache.isEnabled()) {
+                key = new BFTileCache.Key(currentKey, reader.getSeries(), -1, plane, 0, 0, width, height);
+                int cached = BFTileCache.get(key, communicationBuffer, 0);
+                if (cached >= 0 && outputFormat == BFEncoder.RAW) {
+                    return cached;
+                }
+                if (cached >= 0) {
+                    bytes = new byte[cached];
+                    communicationBuffer.rewind().get(bytes);
+                }
+            }
+
+            if (bytes == null) {
+                // Using class's openThumbBytes
+                // instead of FormatTools.openThumbBytes 
+                // might break our custom thumbnail sizes?
+                bytes = FormatTools.openThumbBytes(readerWithThumbnailSizes, plane);
+                if (key != null) {
+                    BFTileCache.put(key, bytes, bytes.length);
+                }
+            }
+            if (outputFormat != BFEncoder.RAW) {
+                // openThumbBytes gives one plane per channel,
+                // with signed types made unsigned
+                int pixelType = reader.getPixelType();
+                if (pixelType == FormatTools.INT8) {
+                    pixelType = FormatTools.UINT8;
+                } else if (pixelType == FormatTools.INT16) {
+                    pixelType = FormatTools.UINT16;
+                } else if (pixelType == FormatTools.INT32) {
+                    pixelType = FormatTools.UINT32;
+                }
+                int channels = bytes.length / (width * height * FormatTools.getBytesPerPixel(pixelType));
+                return writeEncoded(bytes, width, height, pixelType, channels, false);
+            }
             communicationBuffer.rewind().put(bytes);
             return bytes.length;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
@@ -723,13 +1911,13 @@ public class BFBridge {
     double BFGetMPPX(int series) {
         try {
             // Maybe consider modifying to handle multiple series
-            var size = metadata.getPixelsPhysicalSizeX(series);
+            var size = readers.getPhysicalSize(series, 0);
             if (size == null) {
                 return 0d;
             }
             return size.value(UNITS.MICROMETER).doubleValue();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
+            saveError(e);
             return -1d;
         }
 
@@ -737,43 +1925,111 @@ public class BFBridge {
 
     double BFGetMPPY(int series) {
         try {
-            var size = metadata.getPixelsPhysicalSizeY(series);
+            var size = readers.getPhysicalSize(series, 1);
             if (size == null) {
                 return 0d;
             }
             return size.value(UNITS.MICROMETER).doubleValue();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
+            saveError(e);
             return -1d;
         }
     }
 
     double BFGetMPPZ(int series) {
         try {
-            var size = metadata.getPixelsPhysicalSizeZ(series);
+            var size = readers.getPhysicalSize(series, 2);
             if (size == null) {
                 return 0d;
             }
             return size.value(UNITS.MICROMETER).doubleValue();
         } catch (Exception e) {
-            saveError(getStackTrace(e));
+            saveError(e);
             return -1d;
         }
     }
 
+    // Everything about every series and resolution in one call,
+    // see BFMetadataSnapshot for the layout.
+    // Leaves the current series and resolution as they were.
+    // writes to communicationBuffer and returns the number of bytes written
+    int BFGetMetadataSnapshot() {
+        try {
+            byte[] snapshot = currentKey == null ? null : BFMetadataSnapshot.getCached(currentKey);
+            if (snapshot == null) {
+                readers.loadMetadata();
+                snapshot = BFMetadataSnapshot.build(reader, readers.metadata);
+                if (currentKey != null) {
+                    BFMetadataSnapshot.putCached(currentKey, snapshot);
+                }
+            }
+            if (snapshot.length > communicationBuffer.capacity()) {
+                return saveError(BFErrors.BUFFER_TOO_SMALL, "Metadata snapshot of " + snapshot.length + " bytes does not fit the buffer");
+            }
+            communicationBuffer.rewind().put(snapshot);
+            return snapshot.length;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
     int BFDumpOMEXMLMetadata() {
         try {
-            String metadataString = metadata.dumpXML();
+            // In minimal mode, this is where the OME-XML is made
+            String metadataString = readers.fullMetadata().dumpXML();
             byte[] bytes = metadataString.getBytes(charset);
             if (bytes.length > communicationBuffer.capacity()) {
-                saveError("BFDumpOMEXMLMetadata: needed buffer of length at least " + bytes.length + " but current buffer is of length " + communicationBuffer.capacity());
-                return -2;
+                return saveError(BFErrors.BUFFER_TOO_SMALL, "BFDumpOMEXMLMetadata: needed buffer of length at least " + bytes.length + " but current buffer is of length " + communicationBuffer.capacity());
             }
             communicationBuffer.rewind().put(bytes);
             return bytes.length;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
+        }
+    }
+
+    // OME-XML in parts, for documents that may not fit communicationBuffer.
+    // BFOMEXMLStreamStart, then BFOMEXMLStreamNext until it returns 0.
+    private BFXMLStream xmlStream = null;
+
+    int BFOMEXMLStreamStart() {
+        try {
+            stopXMLStream();
+            xmlStream = new BFXMLStream(readers.fullMetadata());
+            return 1;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // Writes the next part to communicationBuffer, filling it unless
+    // this is the last part. Returns the number of bytes written,
+    // 0 when the document is complete.
+    int BFOMEXMLStreamNext() {
+        if (xmlStream == null) {
+            return saveError(BFErrors.INVALID_STATE, "No OME-XML stream; call BFOMEXMLStreamStart");
+        }
+        try {
+            int written = xmlStream.next(communicationBuffer);
+            if (written == 0) {
+                stopXMLStream();
+            }
+            return written;
+        } catch (Exception e) {
+            stopXMLStream();
+            return saveError(e);
+        }
+    }
+
+    int BFOMEXMLStreamStop() {
+        stopXMLStream();
+        return 1;
+    }
+
+    private void stopXMLStream() {
+        if (xmlStream != null) {
+            xmlStream.close();
+            xmlStream = null;
         }
     }
 
@@ -806,57 +2062,204 @@ public class BFBridge {
             }
             return shouldGenerate ? 1 : 0;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
-    // TODO: this function is not ready
-    // -series 0 maybe?
-    // compression
-    // https://github.com/ome/bioformats/blob/develop/components/formats-bsd/src/loci/formats/codec/CompressionType.java#L47
-    // input: two consecutive filepaths in communicationBuffer
-    // .dcm output is suggested for OpenSlide compatibility
-    // otherwise Leica scn is an alternative as it uses BigTiff.
+    // Writes a tiled pyramid OME-TIFF (BigTIFF when large) of the first
+    // series, with numberOfLayers levels including the full resolution
+    // or fewer if the image fits in one tile sooner; see BFPyramidWriter.
+    // Besides the output, this needs scratch space in the output's
+    // directory of about a third of the uncompressed image
+    // (10 GB for 100000x100000 8-bit RGB), freed when done.
+    // input: two consecutive filepaths in communicationBuffer,
+    // .ome.tiff output is suggested
     // this function closes the currently open files if any
     int BFToolsGenerateSubresolutions(int filepathLength1, int filepathLength2, int numberOfLayers) {
+        return BFToolsGeneratePyramid(filepathLength1, filepathLength2, 0, numberOfLayers);
+    }
+
+    // Like BFToolsGenerateSubresolutions, with the filepaths followed by
+    // options such as "codec=jpeg,quality=85,tile=256,container=dicom"
+    // (see BFPyramidOptions); optionsLength 0 for the defaults.
+    // .dcm output is suggested for DICOM
+    int BFToolsGeneratePyramid(int filepathLength1, int filepathLength2, int optionsLength, int numberOfLayers) {
+        long start = System.nanoTime();
+        int result = generatePyramid(filepathLength1, filepathLength2, optionsLength, numberOfLayers);
+        BFStats.record(BFStats.GENERATE_PYRAMID, "", start, result);
+        return result;
+    }
+
+    private int generatePyramid(int filepathLength1, int filepathLength2, int optionsLength, int numberOfLayers) {
         // https://bio-formats.readthedocs.io/en/latest/developers/wsi.html#pyramids-in-ome-tiff
-        // https://bio-formats.readthedocs.io/en/v6.14.0/users/comlinetools/conversion.html
-        // https://bio-formats.readthedocs.io/en/v6.14.0/users/comlinetools/conversion.html#cmdoption-bfconvert-pyramid-scale
-        // "jar tvf" on bioformats-tools.jar shows classes
-        // Meta-inf says main is in loci.formats.tools.ImageInfo
-        // But there are multiple entry points.
-        try {
-            byte[] filepath1 = new byte[filepathLength1];
-            byte[] filepath2 = new byte[filepathLength2];
-            communicationBuffer.rewind().get(filepath1).get(filepath2);
-
-            String inPath = new String(filepath1);
-            String outPath = new String(filepath2);
-
-            // TODO: series 0 and compression arg
-            ImageConverter.main(new String[] { "-noflat", "-pyramid-resolutions", Integer.toString(numberOfLayers),
-                    "-pyramid-scale", "2", "-series", "0", "-compression", "JPEG-2000 Lossy", inPath, outPath });
-            // verify valid file
-            close();
-            reader.setId(outPath);
+        try {
+            PyramidRequest request = readPyramidRequest(filepathLength1, filepathLength2, optionsLength);
+
             close();
+            BFPyramidWriter writer = new BFPyramidWriter(request.inPath(), request.outPath(), numberOfLayers,
+                    request.options());
+            writer.write();
+            writer.verify();
             return 1;
         } catch (Exception e) {
-            saveError(getStackTrace(e));
-            return -1;
+            return saveError(e);
         }
     }
 
+    private record PyramidRequest(String inPath, String outPath, BFPyramidOptions options) {
+    }
+
+    private PyramidRequest readPyramidRequest(int filepathLength1, int filepathLength2, int optionsLength) {
+        byte[] filepath1 = new byte[filepathLength1];
+        byte[] filepath2 = new byte[filepathLength2];
+        byte[] options = new byte[optionsLength];
+        communicationBuffer.rewind().get(filepath1).get(filepath2).get(options);
+        return new PyramidRequest(new String(filepath1), new String(filepath2),
+                optionsLength == 0 ? BFPyramidOptions.DEFAULT : BFPyramidOptions.parse(new String(options)));
+    }
+
+    // Like BFToolsGeneratePyramid but in the background,
+    // see BFPyramidJobs. Leaves the open file of this session alone.
+    // input: two consecutive filepaths then optionsLength bytes of
+    // options in communicationBuffer
+    // returns a job id, always positive, or an error if too many
+    // jobs are queued
+    int BFPyramidJobStart(int filepathLength1, int filepathLength2, int optionsLength, int numberOfLayers) {
+        try {
+            PyramidRequest request = readPyramidRequest(filepathLength1, filepathLength2, optionsLength);
+            return BFPyramidJobs.start(request.inPath(), request.outPath(), numberOfLayers, request.options()).id;
+        } catch (RejectedExecutionException e) {
+            return saveError(BFErrors.INVALID_STATE, "BFPyramidJobStart: too many jobs queued");
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // Writes, little-endian: int state (BFPyramidJobs.QUEUED...),
+    // long tiles written, long tiles in total (0 until known).
+    // Returns the percent complete.
+    int BFPyramidJobProgress(int job) {
+        BFPyramidJobs.Job j = BFPyramidJobs.get(job);
+        if (j == null) {
+            return saveError(BFErrors.INVALID_ARGUMENT, "BFPyramidJobProgress: no job " + job);
+        }
+        if (communicationBuffer.capacity() < 4 + 8 + 8) {
+            return saveError(BFErrors.BUFFER_TOO_SMALL, "BFPyramidJobProgress: buffer too small");
+        }
+        int percent = j.percent();
+        littleEndian()
+                .putInt(j.getState())
+                .putLong(j.writer.getTilesWritten())
+                .putLong(j.writer.getTotalTiles());
+        return percent;
+    }
+
+    // A cancelled or failed job leaves outPath as it was; only its
+    // temporary file is deleted. See BFPyramidJobResult to know when
+    // it stopped.
+    int BFPyramidJobCancel(int job) {
+        BFPyramidJobs.Job j = BFPyramidJobs.get(job);
+        if (j == null) {
+            return saveError(BFErrors.INVALID_ARGUMENT, "BFPyramidJobCancel: no job " + job);
+        }
+        j.cancel();
+        return 1;
+    }
+
+    // 0 while the job runs; once it stopped, 1 if it succeeded or its
+    // error, and the job is forgotten. A finished job not collected within
+    // an hour (-Dbfbridge.pyramidjobretention) is forgotten anyway, as are
+    // the oldest beyond 64 finished ones (-Dbfbridge.pyramidjobsfinished).
+    int BFPyramidJobResult(int job) {
+        BFPyramidJobs.Job j = BFPyramidJobs.get(job);
+        if (j == null) {
+            return saveError(BFErrors.INVALID_ARGUMENT, "BFPyramidJobResult: no job " + job);
+        }
+        if (!j.isFinished()) {
+            return 0;
+        }
+        BFPyramidJobs.remove(job);
+        switch (j.getState()) {
+            case BFPyramidJobs.DONE:
+                return 1;
+            case BFPyramidJobs.CANCELLED:
+                return saveError(BFErrors.INVALID_STATE, "BFPyramidJobResult: job " + job + " was cancelled");
+            default:
+                return saveError(j.getError());
+        }
+    }
+
+    static BFEvents.PyramidStep pyramidStep(String step, String input, String output) {
+        BFEvents.PyramidStep event = new BFEvents.PyramidStep();
+        event.step = step;
+        event.input = input;
+        event.output = output;
+        event.begin();
+        return event;
+    }
+
+    // Starts a JDK Flight Recorder recording of the whole isolate,
+    // replacing any running one. Input Parameter: first settingsLength
+    // bytes of communicationBuffer name a JFR configuration such as
+    // "profile"; 0 records only the bridge's events (see BFEvents).
+    int BFStartRecording(int settingsLength) {
+        try {
+            BFEvents.start(peekString(settingsLength));
+            return 1;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    // Writes the recording so far to the .jfr file named by the first
+    // pathLength bytes of communicationBuffer. Recording continues.
+    int BFDumpRecording(int pathLength) {
+        try {
+            BFEvents.dump(peekString(pathLength));
+            return 1;
+        } catch (Exception e) {
+            return saveError(e);
+        }
+    }
+
+    int BFStopRecording() {
+        BFEvents.stop();
+        return 1;
+    }
+
     private static String getStackTrace(Throwable t) {
         StringWriter sw = new StringWriter();
         t.printStackTrace(new PrintWriter(sw));
         return t.toString() + "\n" + sw.toString();
     }
 
+    // Drops per-file state that isn't kept in BFReaders
+    private void forgetFile() {
+        if (compressedTiles != null) {
+            compressedTiles.close();
+            compressedTiles = null;
+        }
+        stopPlaneStream();
+        stopXMLStream();
+        stopPrefetcher();
+        nativeTiles.clear();
+    }
+
     private void close() {
+        forgetFile();
+        if (currentKey != null && BFReaderPool.isEnabled()) {
+            // Hand the open file to the pool and continue with empty readers
+            BFFileKey key = currentKey;
+            BFReaders open = readers;
+            currentKey = null;
+            BFReaders blank = BFReaderPool.takeBlank();
+            use(blank != null ? blank : new BFReaders());
+            BFReaderPool.give(key, open);
+            return;
+        }
+        currentKey = null;
         try {
-            reader.close();
+            readers.close();
         } catch (Exception e) {
 
         }
@@ -955,14 +2358,21 @@ public class BFBridge {
         }
     }
 
-    private void saveError(String s) {
-        byte[] errorBytes = s.getBytes(charset);
-        int bytes_len = errorBytes.length;
-        // -1 to account for the null byte for security
-        bytes_len = Math.min(bytes_len, Math.max(communicationBuffer.capacity() - 1, 0));
-        // Trim error message
-        communicationBuffer.rewind().put(errorBytes, 0, bytes_len);
-        lastErrorBytes = bytes_len;
+    // Records the error and returns its code, see BFErrors
+    private int saveError(Throwable t) {
+        return saveError(BFErrors.classify(t), null, t);
+    }
+
+    private int saveError(int code, String message) {
+        return saveError(code, message, null);
+    }
+
+    private int saveError(int code, String message, Throwable t) {
+        BFErrors.count(code);
+        lastErrorCode = code;
+        lastErrorMessage = message;
+        lastError = t;
+        return code;
     }
 
     public static void main(String args[]) throws Exception {
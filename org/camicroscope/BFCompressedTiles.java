@@ -0,0 +1,220 @@
+package org.camicroscope;
+
+import loci.common.RandomAccessInputStream;
+import loci.formats.ICompressedTileReader;
+import loci.formats.IFormatReader;
+import loci.formats.ReaderWrapper;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Finds the stored JPEG bytes of a tile so that they can be
+// returned without decoding and reencoding them.
+// For single-file TIFFs (SVS, generic tiled TIFF) we read the tile
+// ourselves with TiffParser, which lets us merge the shared
+// JPEGTables into each tile and mark RGB (not YCbCr) tiles
+// with an Adobe marker, as other decoders would get their colors wrong.
+// Other formats that Bio-Formats can read compressed tiles from
+// (such as DICOM) go through ICompressedTileReader.
+// Anything else, or any tile we aren't sure about, gives null and
+// the caller decodes as usual.
+final class BFCompressedTiles {
+    // A tiled, JPEG-compressed, chunky image in a TIFF file.
+    // offsets and byteCounts give each tile, row by row.
+    record JpegImage(int width, int length, int tileWidth, int tileLength, int tilesPerRow,
+            boolean rgb, byte[] tables, LongBuffer offsets, LongBuffer byteCounts) {
+    }
+
+    private final String path;
+    // Those in the file, null until first needed
+    private List<JpegImage> images;
+    private RandomAccessInputStream stream = null;
+    // Matching image per series and resolution, null if none
+    private final HashMap<Long, JpegImage> matches = new HashMap<>();
+
+    // images: the result of scan(path) if known already, or null
+    BFCompressedTiles(String path, List<JpegImage> images) {
+        this.path = path;
+        this.images = images;
+    }
+
+    // The JPEG-tiled images in the file, empty if it isn't a TIFF
+    static List<JpegImage> scan(String path) throws Exception {
+        ArrayList<JpegImage> found = new ArrayList<>();
+        try (RandomAccessInputStream s = new RandomAccessInputStream(path)) {
+            TiffParser parser = new TiffParser(s);
+            if (!parser.isValidHeader()) {
+                return found;
+            }
+            for (IFD ifd : parser.getIFDs()) {
+                if (!ifd.isTiled() || ifd.getCompression() != TiffCompression.JPEG
+                        || ifd.getPlanarConfiguration() != 1) {
+                    continue;
+                }
+                parser.fillInIFD(ifd);
+                Object tables = ifd.getIFDValue(IFD.JPEG_TABLES);
+                found.add(new JpegImage((int) ifd.getImageWidth(), (int) ifd.getImageLength(),
+                        (int) ifd.getTileWidth(), (int) ifd.getTileLength(), (int) ifd.getTilesPerRow(),
+                        ifd.getPhotometricInterpretation() == PhotoInterp.RGB,
+                        tables instanceof byte[] ? (byte[]) tables : null,
+                        LongBuffer.wrap(ifd.getStripOffsets()), LongBuffer.wrap(ifd.getStripByteCounts())));
+            }
+        }
+        return found;
+    }
+
+    // A complete JPEG stream for the region, or null if the region isn't
+    // exactly one stored tile or isn't stored as baseline JPEG.
+    // reader is the session's reader, at the series and resolution to read.
+    byte[] getJPEG(IFormatReader reader, int plane, int x, int y, int w, int h) throws Exception {
+        int tileWidth = reader.getOptimalTileWidth();
+        int tileHeight = reader.getOptimalTileHeight();
+        if (w != tileWidth || h != tileHeight || x < 0 || y < 0 || x % tileWidth != 0 || y % tileHeight != 0
+                || x + w > reader.getSizeX() || y + h > reader.getSizeY()) {
+            return null;
+        }
+        int column = x / tileWidth;
+        int row = y / tileHeight;
+
+        byte[] jpeg;
+        JpegImage image = findImage(reader, plane);
+        if (image != null) {
+            jpeg = readTiffTile(image, column, row);
+        } else {
+            IFormatReader core = reader instanceof ReaderWrapper ? ((ReaderWrapper) reader).unwrap() : reader;
+            if (!(core instanceof ICompressedTileReader)) {
+                return null;
+            }
+            ICompressedTileReader tiles = (ICompressedTileReader) core;
+            // Make sure that its tiles are the ones we think
+            if (tiles.getTileColumns(plane) != (reader.getSizeX() + tileWidth - 1) / tileWidth
+                    || tiles.getTileRows(plane) != (reader.getSizeY() + tileHeight - 1) / tileHeight) {
+                return null;
+            }
+            jpeg = tiles.openCompressedBytes(plane, column, row);
+        }
+        return isCompleteJPEG(jpeg) ? jpeg : null;
+    }
+
+    private JpegImage findImage(IFormatReader reader, int plane) throws Exception {
+        // With more than one file or plane, the size alone can't tell
+        // us which IFD holds the image
+        if (plane != 0 || reader.getImageCount() != 1 || reader.getUsedFiles().length != 1) {
+            return null;
+        }
+        if (images == null) {
+            images = scan(path);
+        }
+
+        long key = ((long) reader.getSeries() << 32) | reader.getResolution();
+        if (matches.containsKey(key)) {
+            return matches.get(key);
+        }
+        JpegImage match = null;
+        int count = 0;
+        for (JpegImage image : images) {
+            if (image.width() == reader.getSizeX() && image.length() == reader.getSizeY()
+                    && image.tileWidth() == reader.getOptimalTileWidth()
+                    && image.tileLength() == reader.getOptimalTileHeight()) {
+                match = image;
+                count++;
+            }
+        }
+        // Two images of the same size: can't tell which one is ours
+        if (count != 1) {
+            match = null;
+        }
+        matches.put(key, match);
+        return match;
+    }
+
+    private byte[] readTiffTile(JpegImage image, int column, int row) throws Exception {
+        int index = row * image.tilesPerRow() + column;
+        if (index >= image.offsets().limit() || index >= image.byteCounts().limit()) {
+            return null;
+        }
+        long offset = image.offsets().get(index);
+        long count = image.byteCounts().get(index);
+        if (count <= 0 || count > Integer.MAX_VALUE) {
+            return null;
+        }
+        if (stream == null) {
+            stream = new RandomAccessInputStream(path);
+        }
+        byte[] tile = new byte[(int) count];
+        stream.seek(offset);
+        stream.readFully(tile);
+
+        if (image.tables() != null) {
+            tile = mergeTables(image.tables(), tile);
+        }
+        if (image.rgb() && !hasMarker(tile, 0xEE)) {
+            tile = addAdobeMarker(tile);
+        }
+        return tile;
+    }
+    // Tables: SOI, tables, EOI. Tile: SOI, rest.
+    // Result: SOI, tables, rest.
+    private static byte[] mergeTables(byte[] tables, byte[] tile) {
+        if (tables.length < 4 || tile.length < 2) {
+            return tile;
+        }
+        byte[] merged = new byte[tables.length - 2 + tile.length - 2];
+        System.arraycopy(tables, 0, merged, 0, tables.length - 2);
+        System.arraycopy(tile, 2, merged, tables.length - 2, tile.length - 2);
+        return merged;
+    }
+
+    // Adobe APP14 with transform 0 tells decoders the samples are RGB
+    private static byte[] addAdobeMarker(byte[] jpeg) {
+        byte[] marker = { (byte) 0xFF, (byte) 0xEE, 0, 14, 'A', 'd', 'o', 'b', 'e', 0, 100, 0, 0, 0, 0, 0 };
+        byte[] out = new byte[jpeg.length + marker.length];
+        System.arraycopy(jpeg, 0, out, 0, 2);
+        System.arraycopy(marker, 0, out, 2, marker.length);
+        System.arraycopy(jpeg, 2, out, 2 + marker.length, jpeg.length - 2);
+        return out;
+    }
+
+    // Checks that it starts a JPEG, has quantization tables
+    // and is baseline. Extended and progressive tiles are decoded
+    // instead, since clients may only handle baseline.
+    private static boolean isCompleteJPEG(byte[] jpeg) {
+        if (jpeg == null || jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return false;
+        }
+        return hasMarker(jpeg, 0xC0) && hasMarker(jpeg, 0xDB);
+    }
+
+    // Looks through the marker segments before the scan data
+    private static boolean hasMarker(byte[] jpeg, int marker) {
+        int i = 2;
+        while (i + 4 <= jpeg.length && (jpeg[i] & 0xFF) == 0xFF) {
+            int m = jpeg[i + 1] & 0xFF;
+            if (m == marker) {
+                return true;
+            }
+            if (m == 0xDA) {
+                return false;
+            }
+            i += 2 + ((jpeg[i + 2] & 0xFF) << 8 | (jpeg[i + 3] & 0xFF));
+        }
+        return false;
+    }
+
+    void close() {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+            }
+            stream = null;
+        }
+    }
+}
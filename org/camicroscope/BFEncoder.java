@@ -0,0 +1,172 @@
+package org.camicroscope;
+
+import loci.formats.FormatTools;
+
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJCompressor;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+// Encodes pixels in the layout openBytes returns them in,
+// so that tiles can leave the bridge already compressed.
+// JPEG goes through turbojpeg, which Bio-Formats already loads
+// for decoding; if it can't be loaded, ImageIO's encoder is used.
+// PNG is for what JPEG can't hold: 16-bit samples and lossless output.
+final class BFEncoder {
+    private BFEncoder() {
+    }
+
+    static final int RAW = 0;
+    static final int JPEG = 1;
+    static final int PNG = 2;
+
+    // Set once we know turbojpeg's native library can't be used
+    private static volatile boolean turboUnavailable = false;
+
+    static byte[] encode(byte[] pixels, int width, int height, int pixelType, int channels,
+            boolean interleaved, boolean littleEndian, int format, int quality) throws Exception {
+        int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        if (FormatTools.isFloatingPoint(pixelType) || bytesPerPixel > 2) {
+            throw new UnsupportedOperationException("Cannot encode pixel type " + FormatTools.getPixelTypeString(pixelType));
+        }
+        if (channels < 1 || channels > 4) {
+            throw new UnsupportedOperationException("Cannot encode " + channels + " channels");
+        }
+        if (!interleaved && channels > 1) {
+            pixels = interleave(pixels, width * height, channels, bytesPerPixel);
+        }
+        switch (format) {
+            case JPEG:
+                if (bytesPerPixel != 1) {
+                    throw new UnsupportedOperationException("JPEG needs 8-bit samples, use PNG instead");
+                }
+                if (channels == 2) {
+                    throw new UnsupportedOperationException("JPEG cannot hold 2 channels, use PNG instead");
+                }
+                return encodeJPEG(pixels, width, height, channels, quality);
+            case PNG:
+                return encodePNG(pixels, width, height, channels, bytesPerPixel, FormatTools.isSigned(pixelType),
+                        littleEndian);
+            default:
+                throw new UnsupportedOperationException("Unknown output format " + format);
+        }
+    }
+
+    private static byte[] interleave(byte[] planar, int pixels, int channels, int bytesPerPixel) {
+        byte[] out = new byte[planar.length];
+        for (int c = 0; c < channels; c++) {
+            for (int i = 0; i < pixels; i++) {
+                System.arraycopy(planar, (c * pixels + i) * bytesPerPixel,
+                        out, (i * channels + c) * bytesPerPixel, bytesPerPixel);
+            }
+        }
+        return out;
+    }
+
+    private static byte[] encodeJPEG(byte[] pixels, int width, int height, int channels, int quality)
+            throws Exception {
+        if (!turboUnavailable) {
+            try (TJCompressor compressor = new TJCompressor()) {
+                int pixelFormat = channels == 1 ? TJ.PF_GRAY : channels == 3 ? TJ.PF_RGB : TJ.PF_RGBA;
+                compressor.setSourceImage(pixels, 0, 0, width, 0, height, pixelFormat);
+                compressor.setSubsamp(channels == 1 ? TJ.SAMP_GRAY : TJ.SAMP_420);
+                compressor.setJPEGQuality(quality);
+                byte[] out = compressor.compress(0);
+                int length = compressor.getCompressedSize();
+                return out.length == length ? out : Arrays.copyOf(out, length);
+            } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+                turboUnavailable = true;
+            }
+        }
+        // JPEG has no alpha so drop it
+        if (channels == 4) {
+            byte[] rgb = new byte[width * height * 3];
+            for (int i = 0; i < width * height; i++) {
+                System.arraycopy(pixels, i * 4, rgb, i * 3, 3);
+            }
+            pixels = rgb;
+            channels = 3;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(toImage(pixels, width, height, channels), null, null),
+                    param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodePNG(byte[] pixels, int width, int height, int channels, int bytesPerPixel,
+            boolean signed, boolean littleEndian) throws Exception {
+        BufferedImage image;
+        if (bytesPerPixel == 1) {
+            if (signed) {
+                pixels = pixels.clone();
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] ^= (byte) 0x80;
+                }
+            }
+            image = toImage(pixels, width, height, channels);
+        } else {
+            // PNG has no signed samples so shift them to unsigned
+            short[] samples = new short[pixels.length / 2];
+            for (int i = 0; i < samples.length; i++) {
+                int v = littleEndian ? (pixels[2 * i] & 0xFF) | (pixels[2 * i + 1] & 0xFF) << 8
+                        : (pixels[2 * i] & 0xFF) << 8 | (pixels[2 * i + 1] & 0xFF);
+                samples[i] = (short) (signed ? v ^ 0x8000 : v);
+            }
+            image = toImage(samples, width, height, channels);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "png", out)) {
+            throw new UnsupportedOperationException("No PNG encoder available");
+        }
+        return out.toByteArray();
+    }
+
+    private static BufferedImage toImage(byte[] pixels, int width, int height, int channels) {
+        return toImage(new DataBufferByte(pixels, pixels.length), DataBuffer.TYPE_BYTE, width, height, channels);
+    }
+
+    private static BufferedImage toImage(short[] samples, int width, int height, int channels) {
+        return toImage(new DataBufferUShort(samples, samples.length), DataBuffer.TYPE_USHORT, width, height, channels);
+    }
+
+    // Interleaved samples, 1: gray, 2: gray and alpha, 3: RGB, 4: RGBA
+    private static BufferedImage toImage(DataBuffer data, int type, int width, int height, int channels) {
+        boolean alpha = channels == 2 || channels == 4;
+        ColorSpace space = ColorSpace.getInstance(channels <= 2 ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB);
+        ComponentColorModel model = new ComponentColorModel(space, alpha, false,
+                alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, type);
+        int[] offsets = new int[channels];
+        for (int c = 0; c < channels; c++) {
+            offsets[c] = c;
+        }
+        WritableRaster raster = Raster.createInterleavedRaster(data, width, height, width * channels, channels,
+                offsets, null);
+        return new BufferedImage(model, raster, false, null);
+    }
+}
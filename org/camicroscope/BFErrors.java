@@ -0,0 +1,100 @@
+package org.camicroscope;
+
+import loci.formats.FormatException;
+import loci.formats.UnknownFormatException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// What a negative return value means. The message, and for exceptions
+// the stack trace, is only made into text when BFGetErrorLength asks,
+// so that frequent expected failures cost no more than a return.
+final class BFErrors {
+    // Anything not below
+    static final int GENERIC = -1;
+    // communicationBuffer can't hold the result; retry with a bigger one
+    static final int BUFFER_TOO_SMALL = -2;
+    // Out of range region, series, resolution, plane or option
+    static final int INVALID_ARGUMENT = -3;
+    // No reader accepts the file
+    static final int UNKNOWN_FORMAT = -4;
+    // The file can't be read: missing, no permission, I/O failure
+    static final int IO = -5;
+    // A reader accepted the file but it is malformed
+    static final int BAD_FILE = -6;
+    // The call doesn't make sense now, such as reading with no file open
+    static final int INVALID_STATE = -7;
+    // The file is fine but we can't do what was asked with it,
+    // such as JPEG output for 16-bit samples
+    static final int UNSUPPORTED = -8;
+
+    static final int COUNT = 8;
+
+    // Index -code - 1 counts the errors with that code, for all sessions
+    private static final AtomicLongArray counts = new AtomicLongArray(COUNT);
+
+    private BFErrors() {
+    }
+
+    static int classify(Throwable t) {
+        while ((t instanceof ExecutionException || t instanceof CompletionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        // Getters that must open the file (BFStateCacheReader) wrap
+        // why it couldn't be opened
+        if (t instanceof IllegalStateException
+                && (t.getCause() instanceof IOException || t.getCause() instanceof FormatException)) {
+            t = t.getCause();
+        }
+        if (t instanceof UnknownFormatException) {
+            return UNKNOWN_FORMAT;
+        }
+        if (t instanceof FormatException) {
+            return BAD_FILE;
+        }
+        if (t instanceof IllegalArgumentException || t instanceof IndexOutOfBoundsException) {
+            return INVALID_ARGUMENT;
+        }
+        if (t instanceof IllegalStateException) {
+            return INVALID_STATE;
+        }
+        if (t instanceof UnsupportedOperationException) {
+            return UNSUPPORTED;
+        }
+        if (t instanceof IOException) {
+            return IO;
+        }
+        return GENERIC;
+    }
+
+    static void count(int code) {
+        counts.incrementAndGet(-code - 1);
+    }
+
+    static long getCount(int code) {
+        return counts.get(-code - 1);
+    }
+
+    static void resetCounts() {
+        for (int i = 0; i < COUNT; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    // COUNT little-endian longs, for codes -1, -2, ...
+    // Returns the number of bytes written, or -1 if dest is too small.
+    static int writeCounts(ByteBuffer dest) {
+        if (dest.capacity() < COUNT * 8) {
+            return -1;
+        }
+        dest = dest.duplicate().order(ByteOrder.LITTLE_ENDIAN).rewind();
+        for (int i = 0; i < COUNT; i++) {
+            dest.putLong(counts.get(i));
+        }
+        return COUNT * 8;
+    }
+}
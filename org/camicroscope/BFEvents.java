@@ -0,0 +1,171 @@
+package org.camicroscope;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+import java.nio.file.Path;
+import java.util.List;
+
+// JDK Flight Recorder events for what BFBridge does, so that a slow
+// slide can be broken down into setId, decoding and the rest.
+// They cost almost nothing unless a recording is running.
+// A native-image library needs --enable-monitoring=jfr for these,
+// and then BFStartRecording/BFDumpRecording control recordings
+// from inside the isolate.
+final class BFEvents {
+    private BFEvents() {
+    }
+
+    @Name("bfbridge.Open")
+    @Label("Open")
+    @Category("BFBridge")
+    static final class Open extends Event {
+        @Label("Path")
+        String path;
+        @Label("Format")
+        String format;
+        @Label("From Pool")
+        @Description("Reused a file kept open by BFReaderPool")
+        boolean fromPool;
+        @Label("Result")
+        int result;
+    }
+
+    @Name("bfbridge.SetId")
+    @Label("Reader setId")
+    @Description("Bio-Formats parsing a file, within an Open")
+    @Category("BFBridge")
+    static final class SetId extends Event {
+        @Label("Path")
+        String path;
+    }
+
+    @Name("bfbridge.TileRead")
+    @Label("Tile Read")
+    @Category("BFBridge")
+    static final class TileRead extends Event {
+        @Label("Series")
+        int series;
+        @Label("Resolution")
+        int resolution;
+        @Label("Plane")
+        int plane;
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+        @Label("Format")
+        String format;
+        @Label("Result")
+        int result;
+    }
+
+    @Name("bfbridge.Decode")
+    @Label("Decode")
+    @Description("Reader decoding pixels for a tile that wasn't cached, within a Tile Read")
+    @Category("BFBridge")
+    static final class Decode extends Event {
+        @Label("Plane")
+        int plane;
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Cropped")
+        @Description("Cropped from a stored tile decoded earlier")
+        boolean cropped;
+    }
+
+    @Name("bfbridge.Thumbnail")
+    @Label("Thumbnail")
+    @Category("BFBridge")
+    static final class Thumbnail extends Event {
+        @Label("Plane")
+        int plane;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+        @Label("Format")
+        String format;
+    }
+
+    @Name("bfbridge.FormatProbe")
+    @Label("Format Probe")
+    @Category("BFBridge")
+    static final class FormatProbe extends Event {
+        @Label("Path")
+        String path;
+        @Label("Result")
+        int result;
+    }
+
+    @Name("bfbridge.PyramidStep")
+    @Label("Pyramid Step")
+    @Category("BFBridge")
+    static final class PyramidStep extends Event {
+        @Label("Step")
+        String step;
+        @Label("Input")
+        String input;
+        @Label("Output")
+        String output;
+        @Label("Result")
+        @Description("1 if the step completed, otherwise the error code (see BFErrors)")
+        int result;
+        @Label("Cancelled")
+        boolean cancelled;
+    }
+
+    // One recording for the whole isolate
+    private static Recording recording = null;
+
+    // settings: a JFR configuration name such as "default" or "profile",
+    // or empty for only our events
+    static synchronized void start(String settings) throws Exception {
+        stop();
+        Recording r = settings.isEmpty() ? new Recording()
+                : new Recording(Configuration.getConfiguration(settings));
+        for (Class<? extends Event> type : List.of(Open.class, SetId.class, TileRead.class, Decode.class,
+                Thumbnail.class, FormatProbe.class, PyramidStep.class)) {
+            r.enable(type).withoutThreshold();
+        }
+        r.start();
+        recording = r;
+    }
+
+    // Writes what was recorded so far; the recording goes on
+    static synchronized void dump(String path) throws Exception {
+        if (recording == null) {
+            throw new IllegalStateException("No recording; call BFStartRecording");
+        }
+        recording.dump(Path.of(path));
+    }
+
+    static synchronized void stop() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.camicroscope;
+
+import java.io.File;
+
+// Identifies one version of a file on disk.
+// If the file is rewritten, its size or modification time changes
+// and so does the key, so anything cached under the old key
+// simply stops matching.
+// For multi-file formats only the file passed to setId is checked.
+record BFFileKey(String path, long size, long lastModified) {
+    static BFFileKey of(String path) {
+        File file = new File(path);
+        // lastModified and length return 0 for nonexistent files,
+        // which is fine since setId will fail for them anyway
+        return new BFFileKey(file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+}
@@ -0,0 +1,167 @@
+package org.camicroscope;
+
+import loci.common.RandomAccessInputStream;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.UnknownFormatException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Answers BFIsCompatible without letting every reader look at the file,
+// which is what ImageReader.getReader does and what makes listing
+// a directory slow. In order:
+// 1) a verdict we already have for this version of the file
+// 2) magic bytes of formats whose reader accepts any file with them
+// 3) extensions that some enabled reader accepts by name, confirmed
+//    by that reader looking at the start of the file, since the name
+//    alone says nothing about a truncated or mislabelled file
+// 4) magic bytes of files that are certainly not images
+// 5) otherwise ImageReader.getReader, as before
+final class BFFormatDetector {
+    private static final int MAX_VERDICTS = 8192;
+    private static final LinkedHashMap<BFFileKey, Boolean> verdicts = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BFFileKey, Boolean> eldest) {
+            return size() > MAX_VERDICTS;
+        }
+    };
+
+    // Enough for all signatures below (DICOM's is at 128)
+    private static final int HEADER_LENGTH = 132;
+
+    // A signature and the reader that accepts everything starting with it
+    private record Magic(int offset, byte[] bytes, String reader) {
+        Magic(int offset, String ascii, String reader) {
+            this(offset, ascii.getBytes(StandardCharsets.ISO_8859_1), reader);
+        }
+
+        boolean matches(byte[] header, int length) {
+            if (offset + bytes.length > length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (header[offset + i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final Magic[] SUPPORTED = {
+            // TIFF and BigTIFF, which includes SVS, NDPI, SCN and OME-TIFF
+            new Magic(0, "II*\0", "TiffReader"),
+            new Magic(0, "MM\0*", "TiffReader"),
+            new Magic(0, "II+\0", "TiffReader"),
+            new Magic(0, "MM\0+", "TiffReader"),
+            new Magic(128, "DICM", "DicomReader"),
+            new Magic(0, "ZISRAWFILE", "ZeissCZIReader"),
+            new Magic(0, "\u00FF\u00D8\u00FF", "JPEGReader"),
+            new Magic(0, "\u0089PNG\r\n\u001A\n", "APNGReader"),
+            new Magic(0, "\0\0\0\u000CjP  ", "JPEG2000Reader"),
+            new Magic(0, "\u00FFO\u00FFQ", "JPEG2000Reader"),
+            new Magic(0, "GIF8", "GIFReader"),
+    };
+
+    private static final Magic[] UNSUPPORTED = {
+            new Magic(0, "%PDF", null),
+            new Magic(0, "\u007FELF", null),
+            new Magic(0, "#!", null),
+            new Magic(0, "\u00CA\u00FE\u00BA\u00BE", null),
+    };
+
+    // Simple names of the enabled readers, filled on first use
+    private static HashSet<String> enabled = null;
+
+    private BFFormatDetector() {
+    }
+
+    static synchronized Boolean getVerdict(BFFileKey key) {
+        return verdicts.get(key);
+    }
+
+    // Also called by BFOpen once a file opened
+    static synchronized void putVerdict(BFFileKey key, boolean compatible) {
+        verdicts.put(key, compatible);
+    }
+
+    private static synchronized boolean isEnabled(ImageReader reader, String name) {
+        if (enabled == null) {
+            enabled = new HashSet<>();
+            for (IFormatReader r : reader.getReaders()) {
+                enabled.add(r.getClass().getSimpleName());
+            }
+        }
+        return enabled.contains(name);
+    }
+
+    // reader: one without a file open, for the slow path
+    static boolean isCompatible(ImageReader reader, String path) throws Exception {
+        BFFileKey key = BFFileKey.of(path);
+        Boolean verdict = getVerdict(key);
+        if (verdict == null) {
+            verdict = detect(reader, path);
+            putVerdict(key, verdict);
+        }
+        return verdict;
+    }
+
+    // A reader takes the name and, by a stream probe, the contents.
+    // Readers that can't tell from a stream say no and we fall through.
+    private static boolean acceptedByName(ImageReader reader, String path) {
+        for (IFormatReader r : reader.getReaders()) {
+            // Doesn't open the file
+            if (!r.isThisType(path, false)) {
+                continue;
+            }
+            try (RandomAccessInputStream stream = new RandomAccessInputStream(path)) {
+                if (r.isThisType(stream)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean detect(ImageReader reader, String path) throws Exception {
+        File file = new File(path);
+        // Some formats are directories; leave those to the readers
+        if (file.isFile()) {
+            byte[] header = new byte[HEADER_LENGTH];
+            int length = 0;
+            try (InputStream in = new FileInputStream(file)) {
+                int n;
+                while (length < header.length && (n = in.read(header, length, header.length - length)) > 0) {
+                    length += n;
+                }
+            }
+            for (Magic m : SUPPORTED) {
+                if (m.matches(header, length) && isEnabled(reader, m.reader())) {
+                    return true;
+                }
+            }
+            if (acceptedByName(reader, path)) {
+                return true;
+            }
+            for (Magic m : UNSUPPORTED) {
+                if (m.matches(header, length)) {
+                    return false;
+                }
+            }
+        }
+        try {
+            return reader.getReader(path) != null;
+        } catch (UnknownFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.camicroscope;
+
+import loci.formats.IFormatReader;
+import loci.formats.meta.MetadataStore;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Everything BFGetSeriesCount ... BFGetMPPZ give, for all series and
+// resolutions, in one little-endian struct:
+//
+// header (24 bytes):
+// int magic "BFMS", int version (1), int header size,
+// int series count, int series record size, int level record size
+//
+// then for each series, a series record followed by
+// resolution count level records.
+//
+// series record (72 bytes, version 1):
+// int resolution count, sizeZ, sizeC, sizeT, effectiveSizeC, imageCount,
+// rgbChannelCount, pixelType, bitsPerPixel,
+// int flags: 1 RGB, 2 interleaved, 4 little endian, 8 indexed,
+// 16 false color, 32 order certain,
+// 8 bytes dimension order, ASCII, zero padded,
+// double physical size X, Y, Z in micrometers, 0 if not defined
+//
+// level record (16 bytes, version 1):
+// int sizeX, sizeY, optimal tile width, optimal tile height
+//
+// Later versions only append fields to records, so readers should
+// step through records by the sizes in the header.
+final class BFMetadataSnapshot {
+    static final int MAGIC = 'B' | 'F' << 8 | 'M' << 16 | 'S' << 24;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int SERIES_SIZE = 72;
+    static final int LEVEL_SIZE = 16;
+
+    private static final int MAX_CACHED = 64;
+    // Snapshots of recently opened files
+    private static final LinkedHashMap<BFFileKey, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BFFileKey, byte[]> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    private BFMetadataSnapshot() {
+    }
+
+    static synchronized byte[] getCached(BFFileKey key) {
+        return cache.get(key);
+    }
+
+    static synchronized void putCached(BFFileKey key, byte[] snapshot) {
+        cache.put(key, snapshot);
+    }
+
+    // Builds the snapshot of the file open in reader. Leaves the reader
+    // at the series and resolution it was at.
+    static byte[] build(IFormatReader reader, MetadataStore store) throws Exception {
+        int oldSeries = reader.getSeries();
+        int oldResolution = reader.getResolution();
+        try {
+            int seriesCount = reader.getSeriesCount();
+            int size = HEADER_SIZE;
+            for (int s = 0; s < seriesCount; s++) {
+                reader.setSeries(s);
+                size += SERIES_SIZE + reader.getResolutionCount() * LEVEL_SIZE;
+            }
+
+            ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE)
+                    .putInt(seriesCount).putInt(SERIES_SIZE).putInt(LEVEL_SIZE);
+            for (int s = 0; s < seriesCount; s++) {
+                reader.setSeries(s);
+                reader.setResolution(0);
+                int resolutions = reader.getResolutionCount();
+                int flags = (reader.isRGB() ? 1 : 0) | (reader.isInterleaved() ? 2 : 0)
+                        | (reader.isLittleEndian() ? 4 : 0) | (reader.isIndexed() ? 8 : 0)
+                        | (reader.isFalseColor() ? 16 : 0) | (reader.isOrderCertain() ? 32 : 0);
+                b.putInt(resolutions).putInt(reader.getSizeZ()).putInt(reader.getSizeC())
+                        .putInt(reader.getSizeT()).putInt(reader.getEffectiveSizeC())
+                        .putInt(reader.getImageCount()).putInt(reader.getRGBChannelCount())
+                        .putInt(reader.getPixelType()).putInt(reader.getBitsPerPixel()).putInt(flags);
+                byte[] order = new byte[8];
+                byte[] name = reader.getDimensionOrder().getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(name, 0, order, 0, Math.min(name.length, order.length));
+                b.put(order);
+                b.putDouble(micrometers(store, s, 0))
+                        .putDouble(micrometers(store, s, 1))
+                        .putDouble(micrometers(store, s, 2));
+                for (int r = 0; r < resolutions; r++) {
+                    reader.setResolution(r);
+                    b.putInt(reader.getSizeX()).putInt(reader.getSizeY())
+                            .putInt(reader.getOptimalTileWidth()).putInt(reader.getOptimalTileHeight());
+                }
+            }
+            return b.array();
+        } finally {
+            reader.setSeries(oldSeries);
+            reader.setResolution(oldResolution);
+        }
+    }
+
+    private static double micrometers(MetadataStore store, int series, int axis) {
+        Length size = BFMinimalMetadata.getPhysicalSize(store, series, axis);
+        if (size == null) {
+            return 0d;
+        }
+        Number value = size.value(UNITS.MICROMETER);
+        return value == null ? 0d : value.doubleValue();
+    }
+}
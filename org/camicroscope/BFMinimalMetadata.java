@@ -0,0 +1,74 @@
+package org.camicroscope;
+
+import loci.formats.meta.DummyMetadata;
+import loci.formats.meta.MetadataRetrieve;
+import loci.formats.meta.MetadataStore;
+import ome.units.quantity.Length;
+
+import java.util.ArrayList;
+
+// Metadata store for -Dbfbridge.metadata=minimal.
+// Readers fill a full OMEXMLMetadataImpl with every plane, channel
+// and instrument, which is slow and large for files with many planes
+// or series. The bridge reads core fields from the reader itself
+// so the only thing it needs from the store is physical sizes.
+// Everything else is dropped, see BFReaders.fullMetadata.
+final class BFMinimalMetadata extends DummyMetadata {
+    // Per series: X, Y, Z, entries may be null
+    private final ArrayList<Length[]> physicalSizes = new ArrayList<>();
+
+    private Length[] sizes(int series) {
+        while (physicalSizes.size() <= series) {
+            physicalSizes.add(new Length[3]);
+        }
+        return physicalSizes.get(series);
+    }
+
+    // Called by readers before filling a store
+    @Override
+    public void createRoot() {
+        physicalSizes.clear();
+    }
+
+    @Override
+    public void setPixelsPhysicalSizeX(Length physicalSizeX, int imageIndex) {
+        sizes(imageIndex)[0] = physicalSizeX;
+    }
+
+    @Override
+    public void setPixelsPhysicalSizeY(Length physicalSizeY, int imageIndex) {
+        sizes(imageIndex)[1] = physicalSizeY;
+    }
+
+    @Override
+    public void setPixelsPhysicalSizeZ(Length physicalSizeZ, int imageIndex) {
+        sizes(imageIndex)[2] = physicalSizeZ;
+    }
+
+    // axis: 0 X, 1 Y, 2 Z
+    Length getPhysicalSize(int series, int axis) {
+        return series < physicalSizes.size() ? physicalSizes.get(series)[axis] : null;
+    }
+
+    // Physical size from either kind of store, null if not defined
+    static Length getPhysicalSize(MetadataStore store, int series, int axis) {
+        if (store instanceof BFMinimalMetadata) {
+            return ((BFMinimalMetadata) store).getPhysicalSize(series, axis);
+        }
+        if (!(store instanceof MetadataRetrieve)) {
+            return null;
+        }
+        MetadataRetrieve retrieve = (MetadataRetrieve) store;
+        if (series >= retrieve.getImageCount()) {
+            return null;
+        }
+        switch (axis) {
+            case 0:
+                return retrieve.getPixelsPhysicalSizeX(series);
+            case 1:
+                return retrieve.getPixelsPhysicalSizeY(series);
+            default:
+                return retrieve.getPixelsPhysicalSizeZ(series);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.camicroscope;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
+
+// Reads the same region from a sequence of planes (a Z stack,
+// a time series, channels) while decoding the next few planes
+// in the background, so that stepping through planes doesn't
+// wait for a cold decode every time.
+// Uses reader copies so the caller can keep using the main
+// reader between planes. The copies belong to the caller and
+// outlive the stream.
+final class BFPlaneStream {
+    private final BFReaderCopies copies;
+    private final int series;
+    private final int resolution;
+    private final int x;
+    private final int y;
+    private final int w;
+    private final int h;
+    private final int[] planes;
+    // How many planes to decode ahead of the caller, at most one per copy
+    private final int depth;
+
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private int submitted = 0;
+    private int consumed = 0;
+
+    BFPlaneStream(BFReaderCopies copies, int series, int resolution,
+            int x, int y, int w, int h, int[] planes, int depth) {
+        this.series = series;
+        this.resolution = resolution;
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+        this.planes = planes;
+        // A task without a free copy would only wait on a shared decode worker
+        this.depth = Math.max(Math.min(depth, copies.size()), 1);
+        this.copies = copies;
+        fill();
+    }
+
+    // Plane index of what next() returns, or -1 when done
+    int nextPlane() {
+        return consumed < planes.length ? planes[consumed] : -1;
+    }
+
+    // Returns the next plane, or null when done
+    byte[] next() throws Exception {
+        if (consumed >= planes.length) {
+            return null;
+        }
+        Future<byte[]> current = pending.poll();
+        consumed++;
+        fill();
+        return current.get();
+    }
+
+    private void fill() {
+        while (submitted < planes.length && pending.size() < depth) {
+            int plane = planes[submitted++];
+            pending.add(BFReaderCopies.workers.submit(
+                    () -> copies.openBytes(series, resolution, plane, x, y, w, h)));
+        }
+    }
+
+    void close() {
+        for (Future<byte[]> f : pending) {
+            f.cancel(false);
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,285 @@
+package org.camicroscope;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Guesses which tiles a viewer will ask for next and decodes them
+// into BFTileCache in the background.
+// Viewers mostly ask for same-sized tiles of one resolution in
+// raster order, in quad-tree (Z) order, or along the direction
+// the user pans; after that the user often zooms in.
+// So we look at the last few requests for these patterns and
+// predict the tiles that follow, plus the tiles of the next
+// finer resolution under the last tile.
+// Speculative work is capped: at most maxInFlight tiles are
+// queued or being decoded at a time and predictions beyond that
+// are dropped rather than queued. A prefetcher decodes one tile at
+// a time, so it holds at most one of the shared decode workers
+// however many tiles it has queued.
+// It decodes on a reader copy that belongs to the file's BFReaders,
+// so closing a prefetcher never waits for a decode, and the copy is
+// kept and counted with the file by BFReaderPool.
+final class BFPrefetcher {
+    private static final int historyLength = 8;
+    // Tiles predicted from one request at most
+    private static final int maxPredictions = 8;
+
+    private final BFFileKey file;
+    private final int series;
+    // Per resolution of the series
+    private final int[] sizeX;
+    private final int[] sizeY;
+    private final int maxInFlight;
+    // Opened in the background so that the request that enabled
+    // prefetching doesn't wait for another setId
+    private final CompletableFuture<BFReaderCopies> copies;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Tiles waiting to be decoded, and whether a worker is decoding
+    // them. Guarded by queue.
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+    private boolean draining = false;
+
+    // Each: resolution, plane, x, y, w, h. Most recent last.
+    private final ArrayDeque<int[]> history = new ArrayDeque<>();
+
+    BFPrefetcher(CompletableFuture<BFReaderCopies> copies, BFFileKey file, int series, int[] sizeX, int[] sizeY,
+            int maxInFlight) {
+        this.copies = copies;
+        this.file = file;
+        this.series = series;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.maxInFlight = maxInFlight;
+    }
+
+    // null until opened, and if it couldn't be: no prefetching then
+    private BFReaderCopies getCopies() {
+        return copies.isDone() && !copies.isCompletedExceptionally() ? copies.join() : null;
+    }
+
+    int getSeries() {
+        return series;
+    }
+
+    // Called after each tile the client read
+    void observe(int resolution, int plane, int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        history.addLast(new int[] { resolution, plane, x, y, w, h });
+        if (history.size() > historyLength) {
+            history.removeFirst();
+        }
+        if (getCopies() == null) {
+            return;
+        }
+
+        LinkedHashSet<Long> predicted = new LinkedHashSet<>();
+        predictFromPattern(predicted, resolution, plane, x, y, w, h);
+        predictFiner(predicted, resolution, x, y, w, h);
+
+        int submitted = 0;
+        for (long tile : predicted) {
+            if (submitted >= maxPredictions || inFlight.get() >= maxInFlight) {
+                break;
+            }
+            int res = (int) (tile >>> 48);
+            int tx = (int) ((tile >>> 24) & 0xFFFFFF);
+            int ty = (int) (tile & 0xFFFFFF);
+            if (submit(res, plane, tx * w, ty * h, w, h)) {
+                submitted++;
+            }
+        }
+    }
+
+    // Only same-sized, grid-aligned tiles of the same resolution
+    // and plane count as a pattern
+    private void predictFromPattern(LinkedHashSet<Long> out, int resolution, int plane, int x, int y, int w, int h) {
+        if (x % w != 0 || y % h != 0 || history.size() < 2) {
+            return;
+        }
+        ArrayList<int[]> run = new ArrayList<>();
+        for (int[] r : history) {
+            if (r[0] == resolution && r[1] == plane && r[4] == w && r[5] == h && r[2] % w == 0 && r[3] % h == 0) {
+                run.add(new int[] { r[2] / w, r[3] / h });
+            } else {
+                run.clear();
+            }
+        }
+        int n = run.size();
+        if (n < 2) {
+            return;
+        }
+        int tx = x / w;
+        int ty = y / h;
+
+        // Quad-tree order: consecutive Morton codes
+        if (n >= 3) {
+            long m1 = morton(run.get(n - 3));
+            long m2 = morton(run.get(n - 2));
+            long m3 = morton(run.get(n - 1));
+            if (m2 == m1 + 1 && m3 == m2 + 1) {
+                for (int i = 1; i <= 4; i++) {
+                    int[] next = unmorton(m3 + i);
+                    add(out, resolution, next[0], next[1]);
+                }
+                return;
+            }
+        }
+
+        // Raster or panning: keep moving the same way
+        int dx = Integer.signum(run.get(n - 1)[0] - run.get(n - 2)[0]);
+        int dy = Integer.signum(run.get(n - 1)[1] - run.get(n - 2)[1]);
+        if (dx == 0 && dy == 0) {
+            return;
+        }
+        for (int i = 1; i <= 2; i++) {
+            add(out, resolution, tx + i * dx, ty + i * dy);
+        }
+        // A viewport pans as a whole so also shift the other recent tiles
+        for (int i = n - 2; i >= 0 && i >= n - 4; i--) {
+            add(out, resolution, run.get(i)[0] + dx, run.get(i)[1] + dy);
+        }
+        // Raster order wraps to the start of the next row
+        if (dy == 0 && dx > 0 && (long) (tx + 1) * w >= sizeX[resolution]) {
+            add(out, resolution, 0, ty + 1);
+        }
+    }
+
+    // Tiles of the next finer resolution (lower index) covering this tile
+    private void predictFiner(LinkedHashSet<Long> out, int resolution, int x, int y, int w, int h) {
+        if (resolution == 0) {
+            return;
+        }
+        int finer = resolution - 1;
+        double scaleX = (double) sizeX[finer] / sizeX[resolution];
+        double scaleY = (double) sizeY[finer] / sizeY[resolution];
+        int firstX = (int) (x * scaleX / w);
+        int firstY = (int) (y * scaleY / h);
+        int lastX = (int) Math.ceil((x + w) * scaleX / w) - 1;
+        int lastY = (int) Math.ceil((y + h) * scaleY / h) - 1;
+        for (int ty = firstY; ty <= lastY && ty < firstY + 2; ty++) {
+            for (int tx = firstX; tx <= lastX && tx < firstX + 2; tx++) {
+                add(out, finer, tx, ty);
+            }
+        }
+    }
+
+    private void add(LinkedHashSet<Long> out, int resolution, int tx, int ty) {
+        if (tx < 0 || ty < 0 || tx > 0xFFFFFF || ty > 0xFFFFFF) {
+            return;
+        }
+        out.add(((long) resolution << 48) | ((long) tx << 24) | ty);
+    }
+
+    // Returns whether the tile was queued
+    private boolean submit(int resolution, int plane, int x, int y, int w, int h) {
+        if (x >= sizeX[resolution] || y >= sizeY[resolution]) {
+            return false;
+        }
+        // Edge tiles are smaller, as clients request them
+        int tw = Math.min(w, sizeX[resolution] - x);
+        int th = Math.min(h, sizeY[resolution] - y);
+        for (int[] r : history) {
+            if (r[0] == resolution && r[1] == plane && r[2] == x && r[3] == y) {
+                return false;
+            }
+        }
+        BFTileCache.Key key = new BFTileCache.Key(file, series, resolution, plane, x, y, tw, th);
+        if (BFTileCache.contains(key)) {
+            return false;
+        }
+        BFReaderCopies reader = getCopies();
+        if (reader == null) {
+            return false;
+        }
+        inFlight.incrementAndGet();
+        enqueue(() -> {
+            try {
+                byte[] bytes = reader.openBytes(series, resolution, plane, x, y, tw, th);
+                BFTileCache.put(key, bytes, bytes.length);
+            } catch (Exception e) {
+                // Only a guess, the client will report real errors
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+        return true;
+    }
+
+    // Starts a worker for the queue unless one is on it already
+    private void enqueue(Runnable task) {
+        synchronized (queue) {
+            queue.add(task);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            BFReaderCopies.workers.submit(this::drain);
+        } catch (Exception e) {
+            dropQueued();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (queue) {
+                task = queue.poll();
+                if (task == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            task.run();
+        }
+    }
+
+    private void dropQueued() {
+        synchronized (queue) {
+            inFlight.addAndGet(-queue.size());
+            queue.clear();
+            draining = false;
+        }
+    }
+
+    private static long morton(int[] t) {
+        return spread(t[0]) | (spread(t[1]) << 1);
+    }
+
+    private static int[] unmorton(long m) {
+        return new int[] { compact(m), compact(m >>> 1) };
+    }
+
+    // Puts a zero bit between each of the low 24 bits
+    private static long spread(int v) {
+        long x = v & 0xFFFFFFL;
+        long result = 0;
+        for (int i = 0; i < 24; i++) {
+            result |= ((x >>> i) & 1) << (2 * i);
+        }
+        return result;
+    }
+
+    private static int compact(long m) {
+        int result = 0;
+        for (int i = 0; i < 24; i++) {
+            result |= (int) ((m >>> (2 * i)) & 1) << i;
+        }
+        return result;
+    }
+
+    // Drops the queued tiles. The tile being decoded, if any,
+    // finishes in the background; the copy is closed with BFReaders.
+    void close() {
+        synchronized (queue) {
+            inFlight.addAndGet(-queue.size());
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.camicroscope;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pyramid generation in the background, for all sessions.
+// A job has its own readers (see BFPyramidWriter) so it never touches
+// the reader of the session that started it. Jobs run a few at a time,
+// the others wait in a bounded queue. A job stays here until its result
+// is collected, even after it finished, but a client that never collects
+// it doesn't keep it forever: finished jobs are dropped after a while,
+// and beyond a number of them, oldest first.
+final class BFPyramidJobs {
+    static final int QUEUED = 0;
+    static final int RUNNING = 1;
+    static final int DONE = 2;
+    static final int FAILED = 3;
+    static final int CANCELLED = 4;
+
+    // -Dbfbridge.pyramidjobs and -Dbfbridge.pyramidqueue to override
+    private static final int maxRunning = Math.max(1, Integer.getInteger("bfbridge.pyramidjobs", 1));
+    private static final int maxQueued = Math.max(1, Integer.getInteger("bfbridge.pyramidqueue", 16));
+    // -Dbfbridge.pyramidjobretention (seconds) and -Dbfbridge.pyramidjobsfinished to override
+    private static final long retentionNanos = TimeUnit.SECONDS.toNanos(
+            Integer.getInteger("bfbridge.pyramidjobretention", 3600));
+    private static final int maxFinished = Math.max(0, Integer.getInteger("bfbridge.pyramidjobsfinished", 64));
+    private static final ThreadPoolExecutor runner = new ThreadPoolExecutor(maxRunning, maxRunning,
+            0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(maxQueued), r -> {
+                Thread t = new Thread(r, "bfbridge-pyramid-job");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static final ConcurrentHashMap<Integer, Job> jobs = new ConcurrentHashMap<>();
+    private static final AtomicInteger lastJob = new AtomicInteger(0);
+
+    static final class Job {
+        final int id;
+        final BFPyramidWriter writer;
+        private int state = QUEUED;
+        // write() hasn't returned
+        private boolean active = false;
+        private Throwable error = null;
+        private Future<?> future;
+        // System.nanoTime() when it became finished
+        private long finishedAt;
+
+        private Job(int id, BFPyramidWriter writer) {
+            this.id = id;
+            this.writer = writer;
+        }
+
+        synchronized int getState() {
+            return state;
+        }
+
+        synchronized Throwable getError() {
+            return error;
+        }
+
+        // Done, failed or cancelled, and no longer writing
+        synchronized boolean isFinished() {
+            return state != QUEUED && state != RUNNING && !active;
+        }
+
+        private void run() {
+            synchronized (this) {
+                if (state != QUEUED) {
+                    return;
+                }
+                state = RUNNING;
+                active = true;
+            }
+            long start = System.nanoTime();
+            int result = 1;
+            try {
+                writer.write();
+                // Same check as BFToolsGeneratePyramid
+                writer.verify();
+                synchronized (this) {
+                    // Even if cancelled too late to stop
+                    state = DONE;
+                    active = false;
+                    finishedAt = System.nanoTime();
+                }
+            } catch (Throwable t) {
+                result = BFErrors.classify(t);
+                synchronized (this) {
+                    state = state == CANCELLED ? CANCELLED : FAILED;
+                    error = t;
+                    active = false;
+                    finishedAt = System.nanoTime();
+                }
+            }
+            BFStats.record(BFStats.GENERATE_PYRAMID, "", start, result);
+            prune();
+        }
+
+        // A finished job keeps its state
+        synchronized void cancel() {
+            if (state == QUEUED) {
+                future.cancel(false);
+                state = CANCELLED;
+                finishedAt = System.nanoTime();
+            } else if (state == RUNNING) {
+                writer.cancel();
+                state = CANCELLED;
+            }
+        }
+
+        // Percent of the tiles written; 100 only once done
+        int percent() {
+            if (getState() == DONE) {
+                return 100;
+            }
+            long total = writer.getTotalTiles();
+            return total == 0 ? 0 : (int) Math.min(99, writer.getTilesWritten() * 100 / total);
+        }
+    }
+
+    private BFPyramidJobs() {
+    }
+
+    // Throws RejectedExecutionException if the queue is full
+    static Job start(String inPath, String outPath, int numberOfLayers, BFPyramidOptions options) {
+        prune();
+        Job job = new Job(lastJob.incrementAndGet(), new BFPyramidWriter(inPath, outPath, numberOfLayers, options));
+        jobs.put(job.id, job);
+        synchronized (job) {
+            try {
+                job.future = runner.submit(job::run);
+            } catch (RejectedExecutionException e) {
+                jobs.remove(job.id);
+                throw e;
+            }
+        }
+        return job;
+    }
+
+    // null if there is no such job
+    static Job get(int id) {
+        return jobs.get(id);
+    }
+
+    static void remove(int id) {
+        jobs.remove(id);
+    }
+
+    // Drops finished jobs whose result wasn't collected in time,
+    // then the oldest finished ones beyond maxFinished
+    private static synchronized void prune() {
+        long now = System.nanoTime();
+        ArrayList<Job> finished = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            long finishedAt;
+            synchronized (job) {
+                if (!job.isFinished()) {
+                    continue;
+                }
+                finishedAt = job.finishedAt;
+            }
+            if (now - finishedAt > retentionNanos) {
+                jobs.remove(job.id);
+            } else {
+                finished.add(job);
+            }
+        }
+        if (finished.size() > maxFinished) {
+            finished.sort(Comparator.comparingLong(job -> job.finishedAt));
+            for (Job job : finished.subList(0, finished.size() - maxFinished)) {
+                jobs.remove(job.id);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.camicroscope;
+
+import loci.formats.out.TiffWriter;
+
+// How BFPyramidWriter writes, parsed from a string such as
+// "codec=jpeg,quality=85,tile=256,container=dicom,scale=2".
+// Keys may be left out; the defaults are what the bridge always did:
+// codec: j2k-lossy (default), j2k, jpeg, zlib or none
+// quality: 1 to 100 as for BFSetOutputFormat, for jpeg only (default 90)
+// tile: tile width and height, a multiple of 16 (default 512)
+// container: ome-tiff (default) or dicom
+// scale: how many times smaller each level is, 2 (default) or more
+// threads: how many of the bfbridge.pyramidthreads workers this
+// conversion may use, fewer to leave cores for tile serving (default all)
+record BFPyramidOptions(String codec, int quality, int tileSize, String container, int scale, int threads) {
+    static final BFPyramidOptions DEFAULT = new BFPyramidOptions("j2k-lossy", -1, 512, "ome-tiff", 2, -1);
+
+    static BFPyramidOptions parse(String options) {
+        String codec = DEFAULT.codec;
+        int quality = DEFAULT.quality;
+        int tileSize = DEFAULT.tileSize;
+        String container = DEFAULT.container;
+        int scale = DEFAULT.scale;
+        int threads = DEFAULT.threads;
+        for (String option : options.split(",")) {
+            option = option.trim();
+            if (option.isEmpty()) {
+                continue;
+            }
+            int equals = option.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Pyramid option without a value: " + option);
+            }
+            String key = option.substring(0, equals).trim();
+            String value = option.substring(equals + 1).trim();
+            switch (key) {
+                case "codec" -> codec = value;
+                case "quality" -> quality = Integer.parseInt(value);
+                case "tile" -> tileSize = Integer.parseInt(value);
+                case "container" -> container = value;
+                case "scale" -> scale = Integer.parseInt(value);
+                case "threads" -> threads = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown pyramid option: " + key);
+            }
+        }
+        BFPyramidOptions parsed = new BFPyramidOptions(codec, quality, tileSize, container, scale, threads);
+        // Fails on unknown names
+        parsed.compression();
+        if (!container.equals("ome-tiff") && !container.equals("dicom")) {
+            throw new IllegalArgumentException("Unknown pyramid container: " + container);
+        }
+        if (container.equals("dicom") && codec.equals("zlib")) {
+            throw new IllegalArgumentException("DICOM output can't be zlib compressed");
+        }
+        if (quality != -1 && (quality < 1 || quality > 100)) {
+            throw new IllegalArgumentException("Pyramid quality must be between 1 and 100");
+        }
+        if (tileSize < 16 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("Pyramid tile size must be a multiple of 16");
+        }
+        if (scale < 2 || tileSize % scale != 0) {
+            throw new IllegalArgumentException("Pyramid scale must be at least 2 and divide the tile size");
+        }
+        if (threads != -1 && threads < 1) {
+            throw new IllegalArgumentException("Pyramid threads must be at least 1");
+        }
+        return parsed;
+    }
+
+    // The name Bio-Formats writers know the codec by
+    String compression() {
+        return switch (codec) {
+            case "j2k-lossy" -> TiffWriter.COMPRESSION_J2K_LOSSY;
+            case "j2k" -> TiffWriter.COMPRESSION_J2K;
+            case "jpeg" -> TiffWriter.COMPRESSION_JPEG;
+            case "zlib" -> TiffWriter.COMPRESSION_ZLIB;
+            case "none" -> TiffWriter.COMPRESSION_UNCOMPRESSED;
+            default -> throw new IllegalArgumentException("Unknown pyramid codec: " + codec);
+        };
+    }
+
+    // Quality as codecs take it, 0 to 1; quality is -1 when not set
+    double codecQuality() {
+        return (quality < 0 ? 90 : quality) / 100d;
+    }
+}
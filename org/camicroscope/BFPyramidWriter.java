@@ -0,0 +1,647 @@
+package org.camicroscope;
+
+import loci.formats.FormatTools;
+import loci.formats.ICompressedTileWriter;
+import loci.formats.IFormatReader;
+import loci.formats.IFormatWriter;
+import loci.formats.ImageReader;
+import loci.formats.codec.Codec;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.JPEG2000Codec;
+import loci.formats.codec.JPEG2000CodecOptions;
+import loci.formats.codec.JPEGCodec;
+import loci.formats.codec.ZlibCodec;
+import loci.formats.ome.OMEPyramidStore;
+import loci.formats.out.DicomWriter;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.out.TiffWriter;
+import ome.xml.meta.OMEXMLMetadataRoot;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Writes a tiled pyramid OME-TIFF or DICOM of the first series of a file,
+// reading the source once, tile by tile, without ever holding a whole
+// plane. Each level is made from the one above by averaging blocks of
+// scale x scale pixels (see BFScaler). See BFPyramidOptions for the
+// codec, tile size, container and scale.
+//
+// Writers want all of the full resolution before any smaller level,
+// while we make the smaller levels as the full resolution goes by.
+// So while level 0 is read and written, level 1 is assembled one tile
+// row (a strip) at a time from reduced source tiles, and each complete
+// strip of level k is appended to a scratch file and reduced into the
+// strip of level k+1. Then the scratch files are written level by level.
+// Memory is one strip per level, about the full width times one tile
+// height; scratch space is about a third of the uncompressed image
+// at scale 2. Scratch files go in the temporary directory beside the
+// output, so they need room on the output's disk rather than /tmp.
+//
+// Decoding, reducing and, when the writer takes compressed tiles,
+// compressing run on the workers a few tiles ahead of the writer,
+// which still gets the tiles in order on the calling thread.
+final class BFPyramidWriter {
+    // Uncompressed sizes from which we write BigTIFF
+    private static final long BIG_TIFF_THRESHOLD = 2L << 30;
+
+    // Shared by all conversions and separate from bfbridge.decodethreads
+    // so that a conversion leaves cores for tile serving.
+    // -Dbfbridge.pyramidthreads to override, and the threads= option
+    // for a conversion to use fewer.
+    private static final int threads = Math.max(1, Integer.getInteger("bfbridge.pyramidthreads",
+            Runtime.getRuntime().availableProcessors() / 2));
+    private static final ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, "bfbridge-pyramid");
+        t.setDaemon(true);
+        return t;
+    });
+    // Ends a drainer
+    private static final Runnable STOP = () -> {
+    };
+
+    private final String inPath;
+    private final String outPath;
+    private final int resolutions;
+    private final BFPyramidOptions options;
+    private final String compression;
+    private final int scale;
+    // Workers of the pool this conversion uses at most (threads= option)
+    private final int jobThreads;
+    // Tiles in flight ahead of the one being written
+    private final int window;
+    // Work for this conversion, run by jobThreads drainers on the pool
+    // so that it never holds more workers than that
+    private final LinkedBlockingQueue<Runnable> queued = new LinkedBlockingQueue<>();
+
+    private BFReaderCopies copies;
+    private IFormatWriter writer;
+    private int pixelType;
+    private int bytesPerSample;
+    private int channels;
+    private boolean interleaved;
+    private boolean littleEndian;
+    private int planes;
+    private int width;
+    private int height;
+    private int tileSize;
+    private Level[] levels;
+    // Non-null when tiles are compressed here rather than by the writer
+    private Codec codec;
+    private CodecOptions codecOptions;
+
+    // Tiles submitted to the workers, in the order they are written
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    // Read by other threads while writing
+    private volatile long tilesWritten = 0;
+    private volatile long totalTiles = 0;
+    private volatile boolean cancelled = false;
+
+    // resolutions: levels to write including the full resolution,
+    // fewer if the image becomes a single tile sooner
+    BFPyramidWriter(String inPath, String outPath, int resolutions, BFPyramidOptions options) {
+        this.inPath = inPath;
+        this.outPath = outPath;
+        this.resolutions = Math.max(resolutions, 1);
+        this.options = options;
+        compression = options.compression();
+        scale = options.scale();
+        jobThreads = options.threads() > 0 ? Math.min(options.threads(), threads) : threads;
+        window = jobThreads * 4;
+    }
+
+    private <T> Future<T> work(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        queued.add(task);
+        return task;
+    }
+
+    private void startDrainers() {
+        for (int i = 0; i < jobThreads; i++) {
+            workers.submit(() -> {
+                while (true) {
+                    try {
+                        Runnable task = queued.take();
+                        if (task == STOP) {
+                            return;
+                        }
+                        task.run();
+                    } catch (InterruptedException e) {
+                        // From cancelling a task; keep draining
+                    }
+                }
+            });
+        }
+    }
+
+    // Bytes of a w x h image of our pixels, checked to fit in an array
+    private int bytes(long w, long h) {
+        long size = w * h * channels * bytesPerSample;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(w + "x" + h + " pixels of " + channels + " channels of "
+                    + bytesPerSample + " bytes don't fit in an array; use smaller tiles");
+        }
+        return (int) size;
+    }
+
+    // Size of the next level
+    private int smaller(int size) {
+        return (size + scale - 1) / scale;
+    }
+
+    // 0 until the writer has chosen the tile size
+    long getTotalTiles() {
+        return totalTiles;
+    }
+
+    long getTilesWritten() {
+        return tilesWritten;
+    }
+
+    // Makes write() throw CancellationException at the next tile
+    void cancel() {
+        cancelled = true;
+    }
+
+    // One level below the full resolution
+    private final class Level {
+        final int index;
+        final int width;
+        final int height;
+        // Rows [stripY, stripY + tileSize) of this level; the last strip is shorter
+        final byte[] strip;
+        int stripY = 0;
+        final File scratch;
+        final FileChannel channel;
+
+        Level(int index, int width, int height, File dir) throws IOException {
+            this.index = index;
+            this.width = width;
+            this.height = height;
+            strip = new byte[bytes(width, tileSize)];
+            // Not deleteOnExit, which would keep every path for the life of the isolate
+            scratch = File.createTempFile("bfbridge-level" + index + "-", ".raw", dir);
+            channel = FileChannel.open(scratch.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        int stripHeight() {
+            return Math.min(tileSize, height - stripY);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            scratch.delete();
+        }
+    }
+
+    // Exactly one of pixels and compressed; small only for level 0
+    private record Tile(byte[] pixels, byte[] compressed, byte[] small) {
+    }
+
+    private record Pending(int plane, int x, int y, int w, int h, Future<Tile> tile) {
+    }
+
+    // Writes in a temporary directory next to the output and moves the result
+    // to outPath once complete, so a failed or cancelled write leaves any
+    // existing file at outPath alone.
+    void write() throws Exception {
+        // The rename at the end would replace the source
+        if (new File(inPath).getCanonicalFile().equals(new File(outPath).getCanonicalFile())) {
+            throw new IllegalArgumentException("Pyramid output " + outPath + " is the input");
+        }
+        OMEPyramidStore metadata = new OMEPyramidStore();
+        IFormatReader reader = new ImageReader();
+        try {
+            reader.setFlattenedResolutions(false);
+            reader.setMetadataStore(metadata);
+            reader.setId(inPath);
+            reader.setSeries(0);
+            reader.setResolution(0);
+
+            pixelType = reader.getPixelType();
+            bytesPerSample = FormatTools.getBytesPerPixel(pixelType);
+            channels = reader.getRGBChannelCount();
+            interleaved = reader.isInterleaved();
+            littleEndian = reader.isLittleEndian();
+            planes = reader.getImageCount();
+            width = reader.getSizeX();
+            height = reader.getSizeY();
+            if (compression.equals(TiffWriter.COMPRESSION_JPEG) && (bytesPerSample != 1 || channels > 3)) {
+                throw new UnsupportedOperationException("JPEG needs 8-bit pixels of at most 3 channels");
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Only the first series goes in the output
+        OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) metadata.getRoot();
+        for (int i = root.sizeOfImageList() - 1; i > 0; i--) {
+            root.removeImage(root.getImage(i));
+        }
+        metadata.setRoot(root);
+
+        // Stop when a level fits in one tile
+        int count = 1;
+        int w = width;
+        int h = height;
+        while (count < resolutions && (w > options.tileSize() || h > options.tileSize())) {
+            w = smaller(w);
+            h = smaller(h);
+            metadata.setResolutionSizeX(new PositiveInteger(w), 0, count);
+            metadata.setResolutionSizeY(new PositiveInteger(h), 0, count);
+            count++;
+        }
+
+        File out = new File(outPath).getAbsoluteFile();
+        // Written under the output's own name, which writers record in the
+        // file (OME-TIFF's TiffData UUID FileName) and derive extra files'
+        // names from, in a directory beside the output to rename from
+        File tempDir = Files.createTempDirectory(out.getParentFile().toPath(), ".bfbridge-").toFile();
+        File temp = new File(tempDir, out.getName());
+        // Apart from the writer's extra files, which are moved out beside the output
+        File scratchDir = new File(tempDir, ".scratch");
+        boolean moved = false;
+        boolean drainers = false;
+        // Extra files already moved beside the output
+        ArrayList<File> placed = new ArrayList<>();
+        Throwable failure = null;
+        try {
+            Files.createDirectory(scratchDir.toPath());
+            writer = options.container().equals("dicom") ? new DicomWriter() : new OMETiffWriter();
+            writer.setMetadataRetrieve(metadata);
+            writer.setInterleaved(interleaved);
+            writer.setWriteSequentially(true);
+            writer.setCompression(compression);
+            CodecOptions writerOptions = new CodecOptions();
+            writerOptions.quality = options.codecQuality();
+            writer.setCodecOptions(writerOptions);
+            if (writer instanceof TiffWriter tiffWriter) {
+                long bytes = (long) width * height * channels * bytesPerSample * planes;
+                tiffWriter.setBigTiff(bytes * 4 / 3 >= BIG_TIFF_THRESHOLD);
+            }
+            writer.setId(temp.getPath());
+            writer.setSeries(0);
+            tileSize = writer.setTileSizeX(options.tileSize());
+            // Tiles are square here, and padded edge tiles must match the IFD
+            int tileHeight = writer.setTileSizeY(tileSize);
+            if (tileHeight != tileSize) {
+                throw new UnsupportedOperationException("Writer chose " + tileSize + "x" + tileHeight
+                        + " tiles but square tiles are needed");
+            }
+            if (tileSize % scale != 0) {
+                throw new IllegalArgumentException("Tile size " + tileSize + " isn't a multiple of scale " + scale);
+            }
+            // Tiles, and the strips of level 1, the widest, must fit in arrays
+            bytes(tileSize, tileSize);
+            if (count > 1) {
+                bytes(smaller(width), tileSize);
+            }
+            setUpCodec();
+
+            levels = new Level[count];
+            w = width;
+            h = height;
+            long tiles = 0;
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    w = smaller(w);
+                    h = smaller(h);
+                    levels[i] = new Level(i, w, h, scratchDir);
+                }
+                tiles += (long) ((w + tileSize - 1) / tileSize) * ((h + tileSize - 1) / tileSize);
+            }
+            totalTiles = tiles * planes;
+
+            copies = new BFReaderCopies(inPath, jobThreads);
+            startDrainers();
+            drainers = true;
+            writer.setResolution(0);
+            for (int plane = 0; plane < planes; plane++) {
+                int current = plane;
+                step("level 0 plane " + plane, inPath, () -> writeFullResolution(current));
+            }
+            copies.close();
+            copies = null;
+            for (int i = 1; i < count; i++) {
+                int level = i;
+                step("level " + i, inPath, () -> {
+                    writer.setResolution(level);
+                    writeFromScratch(levels[level]);
+                });
+            }
+            writer.close();
+            writer = null;
+            // Files a writer put beside the one it was given, such as other
+            // levels of a DICOM pyramid
+            for (File extra : extraFiles(tempDir, temp)) {
+                File target = new File(out.getParentFile(), extra.getName());
+                Files.move(extra.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                placed.add(target);
+            }
+            Files.move(temp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            for (Pending p : pending) {
+                p.tile().cancel(true);
+            }
+            pending.clear();
+            if (drainers) {
+                // After the cancelled tiles, which return at once
+                for (int i = 0; i < jobThreads; i++) {
+                    queued.add(STOP);
+                }
+            }
+            if (copies != null) {
+                copies.close();
+            }
+            if (levels != null) {
+                for (Level level : levels) {
+                    if (level != null) {
+                        level.close();
+                    }
+                }
+            }
+            scratchDir.delete();
+            if (writer != null) {
+                // Already failing: don't let this hide why, or skip the cleanup
+                try {
+                    writer.close();
+                } catch (Exception e) {
+                    if (failure != null && failure != e) {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (!moved) {
+                // Without the output they describe nothing
+                for (File extra : placed) {
+                    extra.delete();
+                }
+                for (File extra : extraFiles(tempDir, temp)) {
+                    extra.delete();
+                }
+                temp.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    // Opens the output the way a client would, to check that it was
+    // written right. Both the call and the jobs do this after write().
+    void verify() throws Exception {
+        step("verify", outPath, () -> {
+            IFormatReader reader = new ImageReader();
+            try {
+                reader.setId(outPath);
+            } finally {
+                reader.close();
+            }
+        });
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    // Records a PyramidStep event however the step ends,
+    // since failed and cancelled steps are the interesting ones
+    private void step(String name, String input, Step body) throws Exception {
+        BFEvents.PyramidStep event = BFBridge.pyramidStep(name, input, outPath);
+        try {
+            body.run();
+            event.result = 1;
+        } catch (Throwable t) {
+            event.result = BFErrors.classify(t);
+            event.cancelled = t instanceof CancellationException;
+            throw t;
+        } finally {
+            event.commit();
+        }
+    }
+
+    private static File[] extraFiles(File tempDir, File temp) {
+        // Not the scratch directory
+        File[] extra = tempDir.listFiles(f -> f.isFile() && !f.equals(temp));
+        return extra == null ? new File[0] : extra;
+    }
+
+    // Compress on the workers if the writer takes compressed tiles and we
+    // know its codec. Planar data would need a tile per channel, so not then.
+    private void setUpCodec() {
+        if (!(writer instanceof ICompressedTileWriter) || (!interleaved && channels > 1)) {
+            return;
+        }
+        CodecOptions options = new CodecOptions();
+        switch (compression) {
+            case TiffWriter.COMPRESSION_J2K_LOSSY, TiffWriter.COMPRESSION_J2K -> {
+                options.lossless = compression.equals(TiffWriter.COMPRESSION_J2K);
+                options = JPEG2000CodecOptions.getDefaultOptions(options);
+                codec = new JPEG2000Codec();
+            }
+            case TiffWriter.COMPRESSION_JPEG -> {
+                options.quality = this.options.codecQuality();
+                codec = new JPEGCodec();
+            }
+            case TiffWriter.COMPRESSION_ZLIB -> codec = new ZlibCodec();
+            default -> {
+                return;
+            }
+        }
+        // Edge tiles are padded to a whole tile, as the writer would
+        options.width = tileSize;
+        options.height = tileSize;
+        options.channels = channels;
+        options.bitsPerSample = bytesPerSample * 8;
+        options.littleEndian = littleEndian;
+        options.interleaved = true;
+        options.signed = FormatTools.isSigned(pixelType);
+        codecOptions = options;
+    }
+
+    // Runs on the workers
+    private Tile readTile(int plane, int x, int y, int w, int h) throws Exception {
+        byte[] pixels = copies.openBytes(0, 0, plane, x, y, w, h);
+        byte[] small = null;
+        if (levels.length > 1) {
+            // Tiles start at multiples of scale so their smaller versions don't overlap
+            small = BFScaler.resize(pixels, w, h, smaller(w), smaller(h), pixelType, channels, interleaved,
+                    littleEndian);
+        }
+        byte[] compressed = compress(pixels, w, h);
+        return new Tile(compressed == null ? pixels : null, compressed, small);
+    }
+
+    // Runs on the workers; null when the writer compresses
+    private byte[] compress(byte[] pixels, int w, int h) throws Exception {
+        if (codec == null) {
+            return null;
+        }
+        if (w < tileSize || h < tileSize) {
+            byte[] whole = new byte[bytes(tileSize, tileSize)];
+            copy(pixels, w, h, whole, tileSize, tileSize, 0, 0);
+            pixels = whole;
+        }
+        // Some codecs change the options they're given
+        return codec.compress(pixels, new CodecOptions(codecOptions));
+    }
+
+    private void submit(int plane, int x, int y, int w, int h, Future<Tile> tile) throws Exception {
+        pending.add(new Pending(plane, x, y, w, h, tile));
+        drain(window);
+    }
+
+    // Writes pending tiles in order until at most keep are left
+    private void drain(int keep) throws Exception {
+        while (pending.size() > keep) {
+            if (cancelled) {
+                throw new CancellationException("Pyramid generation was cancelled");
+            }
+            Pending p = pending.peek();
+            Tile tile = p.tile().get();
+            pending.poll();
+            if (tile.compressed() != null) {
+                ((ICompressedTileWriter) writer).saveCompressedBytes(p.plane(), tile.compressed(), p.x(), p.y(),
+                        p.w(), p.h());
+            } else {
+                writer.saveBytes(p.plane(), tile.pixels(), p.x(), p.y(), p.w(), p.h());
+            }
+            tilesWritten++;
+            if (tile.small() != null) {
+                int hw = smaller(p.w());
+                int hh = smaller(p.h());
+                Level next = levels[1];
+                copy(tile.small(), hw, hh, next.strip, next.width, tileSize, p.x() / scale,
+                        p.y() / scale - next.stripY);
+                // Last tile of a row of the full resolution
+                if (p.x() + p.w() == width) {
+                    rowsDone(next, smaller(p.y() + p.h()));
+                }
+            }
+        }
+    }
+
+    private void writeFullResolution(int plane) throws Exception {
+        for (int y = 0; y < height; y += tileSize) {
+            int h = Math.min(tileSize, height - y);
+            for (int x = 0; x < width; x += tileSize) {
+                int w = Math.min(tileSize, width - x);
+                int tx = x;
+                int ty = y;
+                submit(plane, x, y, w, h, work(() -> readTile(plane, tx, ty, w, h)));
+            }
+        }
+        drain(0);
+    }
+
+    // Rows up to end of the level are in its strip
+    private void rowsDone(Level level, int end) throws Exception {
+        int stripHeight = level.stripHeight();
+        if (end < level.stripY + stripHeight) {
+            return;
+        }
+        byte[] strip = level.strip;
+        if (stripHeight < tileSize) {
+            strip = region(strip, level.width, tileSize, 0, 0, level.width, stripHeight);
+        }
+        int length = bytes(level.width, stripHeight);
+        ByteBuffer b = ByteBuffer.wrap(strip, 0, length);
+        while (b.hasRemaining()) {
+            level.channel.write(b);
+        }
+
+        if (level.index + 1 < levels.length) {
+            Level next = levels[level.index + 1];
+            int hw = next.width;
+            int hh = smaller(stripHeight);
+            byte[] small = BFScaler.resize(strip, level.width, stripHeight, hw, hh, pixelType, channels,
+                    interleaved, littleEndian);
+            copy(small, hw, hh, next.strip, next.width, tileSize, 0, level.stripY / scale - next.stripY);
+            rowsDone(next, smaller(level.stripY + stripHeight));
+        }
+
+        // Next strip, or the next plane once this one is complete
+        level.stripY += tileSize;
+        if (level.stripY >= level.height) {
+            level.stripY = 0;
+        }
+    }
+
+    private void writeFromScratch(Level level) throws Exception {
+        level.channel.position(0);
+        for (int plane = 0; plane < planes; plane++) {
+            for (int y = 0; y < level.height; y += tileSize) {
+                int h = Math.min(tileSize, level.height - y);
+                ByteBuffer b = ByteBuffer.wrap(level.strip, 0, bytes(level.width, h));
+                while (b.hasRemaining()) {
+                    if (level.channel.read(b) < 0) {
+                        throw new IOException("Scratch file for level " + level.index + " is short");
+                    }
+                }
+                for (int x = 0; x < level.width; x += tileSize) {
+                    int w = Math.min(tileSize, level.width - x);
+                    int tx = x;
+                    submit(plane, x, y, w, h, work(() -> {
+                        byte[] pixels = region(level.strip, level.width, h, tx, 0, w, h);
+                        byte[] compressed = compress(pixels, w, h);
+                        return new Tile(compressed == null ? pixels : null, compressed, null);
+                    }));
+                }
+                // Before the strip is overwritten with the next one
+                drain(0);
+            }
+        }
+    }
+
+    // Copies a whole image of srcWidth x srcHeight to (x, y) of dst
+    private void copy(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstWidth, int dstHeight,
+            int x, int y) {
+        int pixel = bytesPerSample * (interleaved ? channels : 1);
+        int planeCount = interleaved ? 1 : channels;
+        for (int c = 0; c < planeCount; c++) {
+            int srcPlane = c * srcWidth * srcHeight * pixel;
+            int dstPlane = c * dstWidth * dstHeight * pixel;
+            for (int row = 0; row < srcHeight; row++) {
+                System.arraycopy(src, srcPlane + row * srcWidth * pixel,
+                        dst, dstPlane + ((y + row) * dstWidth + x) * pixel, srcWidth * pixel);
+            }
+        }
+    }
+
+    // The region (x, y, w, h) of an image of srcWidth x srcHeight
+    private byte[] region(byte[] src, int srcWidth, int srcHeight, int x, int y, int w, int h) {
+        int pixel = bytesPerSample * (interleaved ? channels : 1);
+        int planeCount = interleaved ? 1 : channels;
+        byte[] dst = new byte[bytes(w, h)];
+        for (int c = 0; c < planeCount; c++) {
+            int srcPlane = c * srcWidth * srcHeight * pixel;
+            int dstPlane = c * w * h * pixel;
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(src, srcPlane + ((y + row) * srcWidth + x) * pixel,
+                        dst, dstPlane + row * w * pixel, w * pixel);
+            }
+        }
+        return dst;
+    }
+}
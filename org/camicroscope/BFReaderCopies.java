@@ -0,0 +1,118 @@
+package org.camicroscope;
+
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.meta.DummyMetadata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Extra readers for the same file so that tiles can be decoded
+// on several cores at once. A single reader isn't thread-safe
+// so each copy is used by one thread at a time.
+// Copies only decode pixels: metadata is answered by the main
+// reader, so they skip building their own OME-XML.
+// Copies are never opened through BFStateCacheReader: its saved state
+// answers metadata but has no tile offsets to decode from (except JPEG
+// tiles, which BFCompressedTiles returns without a reader), so a cached
+// copy would still run the full setId on its first tile. Each copy
+// costs one setId, in parallel, the first time parallel decoding, a
+// plane stream or prefetching needs copies for a file.
+final class BFReaderCopies {
+    // Shared by all files. -Dbfbridge.decodethreads to override.
+    static final ExecutorService workers = Executors.newFixedThreadPool(
+            Integer.getInteger("bfbridge.decodethreads", Runtime.getRuntime().availableProcessors()),
+            r -> {
+                Thread t = new Thread(r, "bfbridge-decode");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final ArrayList<IFormatReader> all = new ArrayList<>();
+    private final ArrayBlockingQueue<IFormatReader> idle;
+    private volatile boolean closed = false;
+
+    BFReaderCopies(String path, int count) throws Exception {
+        idle = new ArrayBlockingQueue<>(count);
+        if (count == 1) {
+            // Also lets a worker create copies without waiting for another worker
+            IFormatReader r = open(path);
+            all.add(r);
+            idle.add(r);
+            return;
+        }
+        // setId is slow so open the copies in parallel too
+        ArrayList<Future<IFormatReader>> opening = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            opening.add(workers.submit(() -> open(path)));
+        }
+        Exception failure = null;
+        for (Future<IFormatReader> f : opening) {
+            try {
+                IFormatReader r = f.get();
+                all.add(r);
+                idle.add(r);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            close();
+            throw failure;
+        }
+    }
+
+    private static IFormatReader open(String path) throws Exception {
+        IFormatReader r = new ImageReader();
+        r.setFlattenedResolutions(false);
+        r.setMetadataStore(new DummyMetadata());
+        r.setId(path);
+        return r;
+    }
+
+    int size() {
+        return closed ? 0 : all.size();
+    }
+
+    // Thread-safe. Blocks until a copy is free.
+    byte[] openBytes(int series, int resolution, int plane, int x, int y, int w, int h) throws Exception {
+        IFormatReader r = idle.take();
+        try {
+            if (closed) {
+                throw new IOException("Reader copies were closed");
+            }
+            r.setSeries(series);
+            r.setResolution(resolution);
+            return r.openBytes(plane, x, y, w, h);
+        } finally {
+            idle.add(r);
+        }
+    }
+
+    // Waits for copies in use by other threads to be returned.
+    // Work queued after this fails instead of blocking.
+    void close() {
+        closed = true;
+        ArrayList<IFormatReader> returned = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            try {
+                returned.add(idle.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (IFormatReader r : returned) {
+            try {
+                r.close();
+            } catch (Exception e) {
+            }
+        }
+        // Let anything still waiting for a copy see that we're closed
+        idle.addAll(returned);
+    }
+}
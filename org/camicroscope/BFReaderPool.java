@@ -0,0 +1,134 @@
+package org.camicroscope;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+// Keeps recently closed files open so that reopening them
+// is a lookup instead of a full setId, which for large
+// TIFF/DICOM files means rereading every IFD and rebuilding
+// the OME-XML metadata.
+// Shared by all BFBridge instances. A reader set is owned either by
+// exactly one BFBridge or by the pool, never both, so we don't need
+// to synchronize on the readers themselves.
+final class BFReaderPool {
+    private BFReaderPool() {
+    }
+
+    private static final class Entry {
+        final BFFileKey key;
+        final BFBridge.BFReaders readers;
+        // Estimate: a reader keeps at most its used files open
+        final int files;
+
+        Entry(BFFileKey key, BFBridge.BFReaders readers, int files) {
+            this.key = key;
+            this.readers = readers;
+            this.files = files;
+        }
+    }
+
+    // -Dbfbridge.poolsize=0 disables the pool
+    private static final int maxEntries = Integer.getInteger("bfbridge.poolsize", 4);
+    // Open file descriptor budget for the idle files in the pool
+    private static final int maxFiles = Integer.getInteger("bfbridge.poolfiles", 64);
+    // Closed reader sets kept to avoid reinstantiating every
+    // Bio-Formats reader class when a new ImageReader is needed
+    private static final int maxBlank = 2;
+
+    // Most recently used first
+    private static final LinkedList<Entry> idle = new LinkedList<>();
+    private static final ArrayDeque<BFBridge.BFReaders> blank = new ArrayDeque<>();
+    private static int idleFiles = 0;
+
+    static boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    // Returns an open reader set for exactly this version of the file
+    // or null. Stale versions of the same path are closed.
+    static BFBridge.BFReaders take(BFFileKey key) {
+        Entry found = null;
+        LinkedList<Entry> stale = new LinkedList<>();
+        synchronized (BFReaderPool.class) {
+            Iterator<Entry> it = idle.iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (found == null && e.key.equals(key)) {
+                    found = e;
+                } else if (e.key.path().equals(key.path()) && !e.key.equals(key)) {
+                    stale.add(e);
+                } else {
+                    continue;
+                }
+                it.remove();
+                idleFiles -= e.files;
+            }
+        }
+        for (Entry e : stale) {
+            discard(e.readers);
+        }
+        return found == null ? null : found.readers;
+    }
+
+    // Returns a reader set with no file open, or null
+    static synchronized BFBridge.BFReaders takeBlank() {
+        return blank.pollFirst();
+    }
+
+    // Hands an open reader set to the pool. The caller must not use it anymore.
+    static void give(BFFileKey key, BFBridge.BFReaders readers) {
+        int files;
+        try {
+            files = Math.max(readers.reader.getUsedFiles().length, 1);
+            int copies = 0;
+            if (readers.copies != null) {
+                copies += readers.copies.size();
+            }
+            if (readers.planeCopies != null) {
+                copies += readers.planeCopies.size();
+            }
+            if (readers.openPrefetchCopies() != null) {
+                copies += readers.openPrefetchCopies().size();
+            }
+            files *= 1 + copies;
+        } catch (Exception e) {
+            discard(readers);
+            return;
+        }
+        if (!isEnabled() || files > maxFiles) {
+            discard(readers);
+            return;
+        }
+
+        LinkedList<Entry> evicted = new LinkedList<>();
+        synchronized (BFReaderPool.class) {
+            idle.addFirst(new Entry(key, readers, files));
+            idleFiles += files;
+            while (idle.size() > maxEntries || idleFiles > maxFiles) {
+                Entry e = idle.removeLast();
+                idleFiles -= e.files;
+                evicted.add(e);
+            }
+        }
+        // Closing might do I/O so don't hold the lock
+        for (Entry e : evicted) {
+            discard(e.readers);
+        }
+    }
+
+    // Closes the file and keeps the readers for reuse if there's room
+    static void discard(BFBridge.BFReaders readers) {
+        try {
+            readers.close();
+        } catch (Exception e) {
+            // Don't reuse a reader in an unknown state
+            return;
+        }
+        synchronized (BFReaderPool.class) {
+            if (blank.size() < maxBlank) {
+                blank.addFirst(readers);
+            }
+        }
+    }
+}
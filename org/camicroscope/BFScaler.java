@@ -0,0 +1,187 @@
+package org.camicroscope;
+
+import loci.formats.FormatTools;
+
+// Resizes pixels in the layout openBytes returns them in.
+// Integer samples of up to 16 bits are averaged over the source
+// pixels each output pixel covers (a box filter), which is what
+// you want when making an image smaller. 32-bit and floating
+// point samples take the top left source pixel instead since
+// averaging them needs more care than it's worth here.
+final class BFScaler {
+    private BFScaler() {
+    }
+
+    static byte[] resize(byte[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+            int pixelType, int channels, boolean interleaved, boolean littleEndian) {
+        int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        boolean average = bytesPerPixel <= 2 && !FormatTools.isFloatingPoint(pixelType);
+        boolean signed = FormatTools.isSigned(pixelType);
+        byte[] dst = new byte[dstWidth * dstHeight * channels * bytesPerPixel];
+
+        // Source column range for each output column
+        int[] firstX = new int[dstWidth];
+        int[] endX = new int[dstWidth];
+        for (int x = 0; x < dstWidth; x++) {
+            firstX[x] = (int) ((long) x * srcWidth / dstWidth);
+            endX[x] = Math.max(firstX[x] + 1, (int) ((long) (x + 1) * srcWidth / dstWidth));
+        }
+
+        for (int y = 0; y < dstHeight; y++) {
+            int firstY = (int) ((long) y * srcHeight / dstHeight);
+            int endY = Math.max(firstY + 1, (int) ((long) (y + 1) * srcHeight / dstHeight));
+            for (int x = 0; x < dstWidth; x++) {
+                for (int c = 0; c < channels; c++) {
+                    int to = index(x, y, c, dstWidth, dstHeight, channels, interleaved) * bytesPerPixel;
+                    if (!average) {
+                        int from = index(firstX[x], firstY, c, srcWidth, srcHeight, channels, interleaved)
+                                * bytesPerPixel;
+                        System.arraycopy(src, from, dst, to, bytesPerPixel);
+                        continue;
+                    }
+                    long sum = 0;
+                    for (int sy = firstY; sy < endY; sy++) {
+                        for (int sx = firstX[x]; sx < endX[x]; sx++) {
+                            int from = index(sx, sy, c, srcWidth, srcHeight, channels, interleaved) * bytesPerPixel;
+                            sum += read(src, from, bytesPerPixel, signed, littleEndian);
+                        }
+                    }
+                    long count = (long) (endY - firstY) * (endX[x] - firstX[x]);
+                    write(dst, to, bytesPerPixel, Math.round((double) sum / count), littleEndian);
+                }
+            }
+        }
+        return dst;
+    }
+
+    // Same result as resize for a source no smaller than the output in
+    // either dimension, fed a region at a time so that the source never
+    // has to be in memory at once. Regions may come in any order but
+    // must not overlap.
+    static final class Downscaler {
+        private final int srcWidth;
+        private final int srcHeight;
+        private final int dstWidth;
+        private final int dstHeight;
+        private final int channels;
+        private final boolean interleaved;
+        private final boolean littleEndian;
+        private final int bytesPerPixel;
+        private final boolean average;
+        private final boolean signed;
+        // Output column of each source column and first source column
+        // of each output column; the same for rows
+        private final int[] dstX;
+        private final int[] firstX;
+        private final int[] dstY;
+        private final int[] firstY;
+        // Per output sample, when averaging
+        private final long[] sums;
+        private final byte[] dst;
+
+        Downscaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int pixelType, int channels,
+                boolean interleaved, boolean littleEndian) {
+            if (srcWidth < dstWidth || srcHeight < dstHeight) {
+                throw new IllegalArgumentException("Downscaler can't make an image larger");
+            }
+            this.srcWidth = srcWidth;
+            this.srcHeight = srcHeight;
+            this.dstWidth = dstWidth;
+            this.dstHeight = dstHeight;
+            this.channels = channels;
+            this.interleaved = interleaved;
+            this.littleEndian = littleEndian;
+            bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+            average = bytesPerPixel <= 2 && !FormatTools.isFloatingPoint(pixelType);
+            signed = FormatTools.isSigned(pixelType);
+            firstX = new int[dstWidth];
+            dstX = map(srcWidth, dstWidth, firstX);
+            firstY = new int[dstHeight];
+            dstY = map(srcHeight, dstHeight, firstY);
+            sums = average ? new long[dstWidth * dstHeight * channels] : null;
+            dst = new byte[dstWidth * dstHeight * channels * bytesPerPixel];
+        }
+
+        // The ranges resize uses, which cover the source exactly once
+        // when it is no smaller than the output
+        private static int[] map(int src, int dst, int[] first) {
+            int[] to = new int[src];
+            for (int i = 0; i < dst; i++) {
+                first[i] = (int) ((long) i * src / dst);
+                int end = (int) ((long) (i + 1) * src / dst);
+                for (int j = first[i]; j < end; j++) {
+                    to[j] = i;
+                }
+            }
+            return to;
+        }
+
+        // region: w by h source pixels at x, y, laid out like openBytes
+        void add(byte[] region, int x, int y, int w, int h) {
+            for (int ry = 0; ry < h; ry++) {
+                int sy = y + ry;
+                int oy = dstY[sy];
+                for (int rx = 0; rx < w; rx++) {
+                    int sx = x + rx;
+                    int ox = dstX[sx];
+                    for (int c = 0; c < channels; c++) {
+                        int from = index(rx, ry, c, w, h, channels, interleaved) * bytesPerPixel;
+                        int to = index(ox, oy, c, dstWidth, dstHeight, channels, interleaved);
+                        if (average) {
+                            sums[to] += read(region, from, bytesPerPixel, signed, littleEndian);
+                        } else if (sx == firstX[ox] && sy == firstY[oy]) {
+                            System.arraycopy(region, from, dst, to * bytesPerPixel, bytesPerPixel);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Once every source pixel was added
+        byte[] result() {
+            if (average) {
+                for (int oy = 0; oy < dstHeight; oy++) {
+                    int rows = (oy + 1 < dstHeight ? firstY[oy + 1] : srcHeight) - firstY[oy];
+                    for (int ox = 0; ox < dstWidth; ox++) {
+                        int columns = (ox + 1 < dstWidth ? firstX[ox + 1] : srcWidth) - firstX[ox];
+                        long count = (long) rows * columns;
+                        for (int c = 0; c < channels; c++) {
+                            int i = index(ox, oy, c, dstWidth, dstHeight, channels, interleaved);
+                            write(dst, i * bytesPerPixel, bytesPerPixel, Math.round((double) sums[i] / count),
+                                    littleEndian);
+                        }
+                    }
+                }
+            }
+            return dst;
+        }
+    }
+
+    // Sample index, not byte index
+    private static int index(int x, int y, int c, int width, int height, int channels, boolean interleaved) {
+        if (interleaved) {
+            return (y * width + x) * channels + c;
+        }
+        return (c * height + y) * width + x;
+    }
+
+    private static long read(byte[] b, int at, int bytes, boolean signed, boolean littleEndian) {
+        if (bytes == 1) {
+            return signed ? b[at] : b[at] & 0xFF;
+        }
+        int v = littleEndian ? (b[at] & 0xFF) | (b[at + 1] & 0xFF) << 8 : (b[at] & 0xFF) << 8 | (b[at + 1] & 0xFF);
+        return signed ? (short) v : v;
+    }
+
+    private static void write(byte[] b, int at, int bytes, long v, boolean littleEndian) {
+        if (bytes == 1) {
+            b[at] = (byte) v;
+        } else if (littleEndian) {
+            b[at] = (byte) v;
+            b[at + 1] = (byte) (v >> 8);
+        } else {
+            b[at] = (byte) (v >> 8);
+            b[at + 1] = (byte) v;
+        }
+    }
+}
@@ -0,0 +1,831 @@
+package org.camicroscope;
+
+import loci.formats.CoreMetadata;
+import loci.formats.FileInfo;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.Modulo;
+import loci.formats.ReaderWrapper;
+import loci.formats.meta.DummyMetadata;
+import loci.formats.meta.MetadataStore;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLServiceImpl;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+// Our replacement for Memoizer, which doesn't work on native-image
+// because it serializes the reader with Kryo.
+// Instead of the reader, we save what the bridge asks about a file:
+// core metadata of each series and resolution (BFMetadataSnapshot),
+// format, used files, OME-XML and, for TIFFs, where each JPEG tile is.
+// When a file is opened again, setId only maps the saved state and
+// answers from it. The real reader opens the file when pixels are
+// first needed, so a client that only lays out the slide, or only asks
+// for stored JPEG tiles, never waits for it.
+// Any other pixels still cost a full setId on first access: tile
+// offsets are only saved for JPEG passthrough, so there is nothing to
+// decode from without the real reader. Getters the state can't answer
+// open the file the same way instead of asking a reader without one.
+// For the same reason BFReaderCopies, which only decode, don't use it.
+//
+// File layout (little-endian), in bfbridge.cachedir named after the
+// SHA-256 of the path:
+// int magic "BFRS", int version (1),
+// long size, long last modified, string path,
+// string current file, string format, int used file count, strings,
+// int snapshot length, snapshot,
+// string OME-XML (empty if saved with -Dbfbridge.metadata=minimal),
+// int JPEG image count, then for each:
+// int width, length, tile width, tile length, tiles per row, int 1 if RGB,
+// int tables length (-1 for none), tables,
+// int tile count, long offsets[tile count], long byte counts[tile count]
+// where a string is an int length and UTF-8 bytes.
+// A file that doesn't match the version, size or modification time
+// is ignored and overwritten.
+final class BFStateCacheReader extends ReaderWrapper {
+    private static final int MAGIC = 'B' | 'F' << 8 | 'R' << 16 | 'S' << 24;
+    private static final int VERSION = 1;
+
+    private final File cachedir;
+    // What the bridge gave to setMetadataStore
+    private MetadataStore store = null;
+
+    // Non-null when the file was opened from the cache
+    private State state = null;
+    // Whether the wrapped reader has the file open
+    private boolean opened = false;
+    private boolean metadataLoaded = false;
+    // Our position while we answer from the state
+    private int series = 0;
+    private int resolution = 0;
+
+    BFStateCacheReader(IFormatReader r, File cachedir) {
+        super(r);
+        this.cachedir = cachedir;
+    }
+
+    // Everything read back from a cache file
+    private static final class State {
+        String currentFile;
+        String format;
+        String[] usedFiles;
+        byte[] snapshot;
+        String xml;
+        List<BFCompressedTiles.JpegImage> jpegImages;
+
+        // Per series, in the order of the snapshot's series record
+        int[][] core;
+        String[] dimensionOrder;
+        // Per series: X, Y, Z in micrometers, 0 if not defined
+        double[][] physicalSizes;
+        // Per series and resolution: sizeX, sizeY, tile width, tile height
+        int[][][] levels;
+
+        int get(int series, int field) {
+            return core[series][field];
+        }
+    }
+
+    // Indices into State.core
+    private static final int RESOLUTIONS = 0, SIZE_Z = 1, SIZE_C = 2, SIZE_T = 3, EFFECTIVE_SIZE_C = 4,
+            IMAGE_COUNT = 5, RGB_CHANNELS = 6, PIXEL_TYPE = 7, BITS_PER_PIXEL = 8, FLAGS = 9;
+
+    // The JPEG-tiled images of the file if known from the cache, or null
+    List<BFCompressedTiles.JpegImage> getJpegImages() {
+        return state == null ? null : state.jpegImages;
+    }
+
+    // Fills the metadata store from the saved OME-XML, or for
+    // BFMinimalMetadata from the snapshot, if the file was opened
+    // from the cache
+    void loadMetadata() throws Exception {
+        if (state == null || metadataLoaded || store == null) {
+            return;
+        }
+        metadataLoaded = true;
+        if (store instanceof BFMinimalMetadata) {
+            store.createRoot();
+            for (int i = 0; i < state.physicalSizes.length; i++) {
+                double[] sizes = state.physicalSizes[i];
+                if (sizes[0] != 0d) {
+                    store.setPixelsPhysicalSizeX(new Length(sizes[0], UNITS.MICROMETER), i);
+                }
+                if (sizes[1] != 0d) {
+                    store.setPixelsPhysicalSizeY(new Length(sizes[1], UNITS.MICROMETER), i);
+                }
+                if (sizes[2] != 0d) {
+                    store.setPixelsPhysicalSizeZ(new Length(sizes[2], UNITS.MICROMETER), i);
+                }
+            }
+        } else if (!state.xml.isEmpty()) {
+            new OMEXMLServiceImpl().convertMetadata(state.xml, store);
+        }
+    }
+
+    @Override
+    public void setMetadataStore(MetadataStore store) {
+        this.store = store;
+        super.setMetadataStore(store);
+    }
+
+    @Override
+    public MetadataStore getMetadataStore() {
+        return store != null ? store : super.getMetadataStore();
+    }
+
+    @Override
+    public void setId(String id) throws FormatException, IOException {
+        close();
+        BFFileKey key = BFFileKey.of(id);
+        File file = cacheFile(key);
+        if (file != null && file.isFile()) {
+            try {
+                State s = read(file, key);
+                // Saved in minimal metadata mode, without OME-XML
+                if (s != null && s.xml.isEmpty() && store instanceof OMEXMLMetadata) {
+                    s = null;
+                }
+                if (s != null) {
+                    state = s;
+                    BFMetadataSnapshot.putCached(key, s.snapshot);
+                    return;
+                }
+            } catch (Exception e) {
+                // Unreadable or truncated: reopen and rewrite
+            }
+        }
+        super.setId(id);
+        opened = true;
+        if (file != null) {
+            try {
+                write(file, key);
+            } catch (Exception e) {
+                // The cache is only an optimization
+                file.delete();
+            }
+        }
+    }
+
+    // Opens the file for real, if we have been answering from the cache
+    private void ensureOpen() throws FormatException, IOException {
+        if (state == null || opened) {
+            return;
+        }
+        IFormatReader r = getReader();
+        // The store is filled from the saved XML instead
+        r.setMetadataStore(new DummyMetadata());
+        r.setId(state.currentFile);
+        opened = true;
+        r.setSeries(series);
+        r.setResolution(resolution);
+    }
+
+    private boolean answersFromState() {
+        return state != null && !opened;
+    }
+
+    @Override
+    public void close(boolean fileOnly) throws IOException {
+        boolean wasCached = state != null;
+        state = null;
+        opened = false;
+        metadataLoaded = false;
+        series = 0;
+        resolution = 0;
+        super.close(fileOnly);
+        if (wasCached) {
+            getReader().setMetadataStore(store);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(false);
+    }
+
+    private File cacheFile(BFFileKey key) {
+        if (cachedir == null) {
+            return null;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.path().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(cachedir, name + ".bfstate");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void write(File file, BFFileKey key) throws Exception {
+        IFormatReader r = getReader();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianWriter out = new LittleEndianWriter(bytes);
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(key.size());
+        out.putLong(key.lastModified());
+        out.putString(key.path());
+        out.putString(r.getCurrentFile());
+        out.putString(r.getFormat());
+        String[] used = r.getUsedFiles();
+        out.putInt(used.length);
+        for (String f : used) {
+            out.putString(f);
+        }
+        byte[] snapshot = BFMetadataSnapshot.build(r, store);
+        BFMetadataSnapshot.putCached(key, snapshot);
+        out.putInt(snapshot.length);
+        out.put(snapshot);
+        out.putString(store instanceof OMEXMLMetadata ? ((OMEXMLMetadata) store).dumpXML() : "");
+
+        List<BFCompressedTiles.JpegImage> images = used.length == 1
+                ? BFCompressedTiles.scan(r.getCurrentFile())
+                : new ArrayList<>();
+        out.putInt(images.size());
+        for (BFCompressedTiles.JpegImage image : images) {
+            out.putInt(image.width());
+            out.putInt(image.length());
+            out.putInt(image.tileWidth());
+            out.putInt(image.tileLength());
+            out.putInt(image.tilesPerRow());
+            out.putInt(image.rgb() ? 1 : 0);
+            if (image.tables() == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(image.tables().length);
+                out.put(image.tables());
+            }
+            int count = Math.min(image.offsets().limit(), image.byteCounts().limit());
+            out.putInt(count);
+            for (int i = 0; i < count; i++) {
+                out.putLong(image.offsets().get(i));
+            }
+            for (int i = 0; i < count; i++) {
+                out.putLong(image.byteCounts().get(i));
+            }
+        }
+
+        // Readers never see a partly written file
+        File temp = File.createTempFile("bfstate", ".tmp", cachedir);
+        try {
+            Files.write(temp.toPath(), bytes.toByteArray());
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    // DataOutputStream would write big-endian
+    private static final class LittleEndianWriter {
+        private final ByteArrayOutputStream out;
+        private final ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        LittleEndianWriter(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void putInt(int v) {
+            out.write(b.clear().putInt(v).array(), 0, 4);
+        }
+
+        void putLong(long v) {
+            out.write(b.clear().putLong(v).array(), 0, 8);
+        }
+
+        void put(byte[] v) throws IOException {
+            out.write(v);
+        }
+
+        void putString(String s) throws IOException {
+            byte[] v = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+            putInt(v.length);
+            put(v);
+        }
+    }
+
+    // null if the file is for another version of the file
+    private static State read(File file, BFFileKey key) throws Exception {
+        ByteBuffer b;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping outlives the channel; tile offsets are read from it
+            b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (b.getInt() != MAGIC || b.getInt() != VERSION || b.getLong() != key.size()
+                || b.getLong() != key.lastModified() || !getString(b).equals(key.path())) {
+            return null;
+        }
+        State s = new State();
+        s.currentFile = getString(b);
+        s.format = getString(b);
+        s.usedFiles = new String[b.getInt()];
+        for (int i = 0; i < s.usedFiles.length; i++) {
+            s.usedFiles[i] = getString(b);
+        }
+        s.snapshot = new byte[b.getInt()];
+        b.get(s.snapshot);
+        s.xml = getString(b);
+
+        int imageCount = b.getInt();
+        s.jpegImages = new ArrayList<>(imageCount);
+        for (int i = 0; i < imageCount; i++) {
+            int width = b.getInt();
+            int length = b.getInt();
+            int tileWidth = b.getInt();
+            int tileLength = b.getInt();
+            int tilesPerRow = b.getInt();
+            boolean rgb = b.getInt() == 1;
+            int tablesLength = b.getInt();
+            byte[] tables = null;
+            if (tablesLength >= 0) {
+                tables = new byte[tablesLength];
+                b.get(tables);
+            }
+            int count = b.getInt();
+            LongBuffer offsets = b.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().limit(count);
+            b.position(b.position() + count * 8);
+            LongBuffer byteCounts = b.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().limit(count);
+            b.position(b.position() + count * 8);
+            s.jpegImages.add(new BFCompressedTiles.JpegImage(width, length, tileWidth, tileLength,
+                    tilesPerRow, rgb, tables, offsets, byteCounts));
+        }
+        parseSnapshot(s);
+        return s;
+    }
+
+    private static String getString(ByteBuffer b) {
+        byte[] v = new byte[b.getInt()];
+        b.get(v);
+        return new String(v, StandardCharsets.UTF_8);
+    }
+
+    private static void parseSnapshot(State s) {
+        ByteBuffer b = ByteBuffer.wrap(s.snapshot).order(ByteOrder.LITTLE_ENDIAN);
+        b.getInt(); // magic
+        b.getInt(); // version
+        int headerSize = b.getInt();
+        int seriesCount = b.getInt();
+        int seriesSize = b.getInt();
+        int levelSize = b.getInt();
+        s.core = new int[seriesCount][];
+        s.dimensionOrder = new String[seriesCount];
+        s.physicalSizes = new double[seriesCount][];
+        s.levels = new int[seriesCount][][];
+        int position = headerSize;
+        for (int i = 0; i < seriesCount; i++) {
+            b.position(position);
+            int[] core = new int[FLAGS + 1];
+            for (int f = 0; f < core.length; f++) {
+                core[f] = b.getInt();
+            }
+            byte[] order = new byte[8];
+            b.get(order);
+            s.core[i] = core;
+            s.dimensionOrder[i] = new String(order, StandardCharsets.US_ASCII).trim();
+            s.physicalSizes[i] = new double[] { b.getDouble(), b.getDouble(), b.getDouble() };
+            position += seriesSize;
+            s.levels[i] = new int[core[RESOLUTIONS]][];
+            for (int r = 0; r < core[RESOLUTIONS]; r++) {
+                b.position(position);
+                s.levels[i][r] = new int[] { b.getInt(), b.getInt(), b.getInt(), b.getInt() };
+                position += levelSize;
+            }
+        }
+    }
+
+    // Answered from the state until the file is opened
+
+    @Override
+    public int getSeriesCount() {
+        return answersFromState() ? state.core.length : super.getSeriesCount();
+    }
+
+    @Override
+    public void setSeries(int no) {
+        if (!answersFromState()) {
+            super.setSeries(no);
+            return;
+        }
+        if (no < 0 || no >= state.core.length) {
+            throw new IllegalArgumentException("Invalid series: " + no);
+        }
+        series = no;
+        resolution = 0;
+    }
+
+    @Override
+    public int getSeries() {
+        return answersFromState() ? series : super.getSeries();
+    }
+
+    @Override
+    public int getResolutionCount() {
+        return answersFromState() ? state.get(series, RESOLUTIONS) : super.getResolutionCount();
+    }
+
+    @Override
+    public void setResolution(int no) {
+        if (!answersFromState()) {
+            super.setResolution(no);
+            return;
+        }
+        if (no < 0 || no >= state.get(series, RESOLUTIONS)) {
+            throw new IllegalArgumentException("Invalid resolution: " + no);
+        }
+        resolution = no;
+    }
+
+    @Override
+    public int getResolution() {
+        return answersFromState() ? resolution : super.getResolution();
+    }
+
+    @Override
+    public int getSizeX() {
+        return answersFromState() ? state.levels[series][resolution][0] : super.getSizeX();
+    }
+
+    @Override
+    public int getSizeY() {
+        return answersFromState() ? state.levels[series][resolution][1] : super.getSizeY();
+    }
+
+    @Override
+    public int getOptimalTileWidth() {
+        return answersFromState() ? state.levels[series][resolution][2] : super.getOptimalTileWidth();
+    }
+
+    @Override
+    public int getOptimalTileHeight() {
+        return answersFromState() ? state.levels[series][resolution][3] : super.getOptimalTileHeight();
+    }
+
+    @Override
+    public int getSizeZ() {
+        return answersFromState() ? state.get(series, SIZE_Z) : super.getSizeZ();
+    }
+
+    @Override
+    public int getSizeC() {
+        return answersFromState() ? state.get(series, SIZE_C) : super.getSizeC();
+    }
+
+    @Override
+    public int getSizeT() {
+        return answersFromState() ? state.get(series, SIZE_T) : super.getSizeT();
+    }
+
+    @Override
+    public int getEffectiveSizeC() {
+        return answersFromState() ? state.get(series, EFFECTIVE_SIZE_C) : super.getEffectiveSizeC();
+    }
+
+    @Override
+    public int getImageCount() {
+        return answersFromState() ? state.get(series, IMAGE_COUNT) : super.getImageCount();
+    }
+
+    @Override
+    public int getRGBChannelCount() {
+        return answersFromState() ? state.get(series, RGB_CHANNELS) : super.getRGBChannelCount();
+    }
+
+    @Override
+    public int getPixelType() {
+        return answersFromState() ? state.get(series, PIXEL_TYPE) : super.getPixelType();
+    }
+
+    @Override
+    public int getBitsPerPixel() {
+        return answersFromState() ? state.get(series, BITS_PER_PIXEL) : super.getBitsPerPixel();
+    }
+
+    private boolean flag(int bit) {
+        return (state.get(series, FLAGS) & bit) != 0;
+    }
+
+    @Override
+    public boolean isRGB() {
+        return answersFromState() ? flag(1) : super.isRGB();
+    }
+
+    @Override
+    public boolean isInterleaved() {
+        return answersFromState() ? flag(2) : super.isInterleaved();
+    }
+
+    @Override
+    public boolean isLittleEndian() {
+        return answersFromState() ? flag(4) : super.isLittleEndian();
+    }
+
+    @Override
+    public boolean isIndexed() {
+        return answersFromState() ? flag(8) : super.isIndexed();
+    }
+
+    @Override
+    public boolean isFalseColor() {
+        return answersFromState() ? flag(16) : super.isFalseColor();
+    }
+
+    @Override
+    public boolean isOrderCertain() {
+        return answersFromState() ? flag(32) : super.isOrderCertain();
+    }
+
+    @Override
+    public String getDimensionOrder() {
+        return answersFromState() ? state.dimensionOrder[series] : super.getDimensionOrder();
+    }
+
+    @Override
+    public int getIndex(int z, int c, int t) {
+        return answersFromState() ? FormatTools.getIndex(this, z, c, t) : super.getIndex(z, c, t);
+    }
+
+    @Override
+    public int[] getZCTCoords(int index) {
+        return answersFromState() ? FormatTools.getZCTCoords(this, index) : super.getZCTCoords(index);
+    }
+
+    @Override
+    public String getCurrentFile() {
+        return answersFromState() ? state.currentFile : super.getCurrentFile();
+    }
+
+    @Override
+    public String[] getUsedFiles() {
+        return answersFromState() ? state.usedFiles.clone() : super.getUsedFiles();
+    }
+
+    @Override
+    public String getFormat() {
+        return answersFromState() ? state.format : super.getFormat();
+    }
+
+    // Need the file
+
+    // ensureOpen for getters, which can't throw its checked exceptions
+    private IFormatReader openReader() {
+        try {
+            ensureOpen();
+        } catch (FormatException | IOException e) {
+            throw new IllegalStateException("Could not open " + state.currentFile, e);
+        }
+        return getReader();
+    }
+
+    @Override
+    public byte[] openBytes(int no) throws FormatException, IOException {
+        ensureOpen();
+        return super.openBytes(no);
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf) throws FormatException, IOException {
+        ensureOpen();
+        return super.openBytes(no, buf);
+    }
+
+    @Override
+    public byte[] openBytes(int no, int x, int y, int w, int h) throws FormatException, IOException {
+        ensureOpen();
+        return super.openBytes(no, x, y, w, h);
+    }
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h) throws FormatException, IOException {
+        ensureOpen();
+        return super.openBytes(no, buf, x, y, w, h);
+    }
+
+    @Override
+    public byte[] openThumbBytes(int no) throws FormatException, IOException {
+        ensureOpen();
+        return super.openThumbBytes(no);
+    }
+
+    @Override
+    public byte[][] get8BitLookupTable() throws FormatException, IOException {
+        ensureOpen();
+        return super.get8BitLookupTable();
+    }
+
+    @Override
+    public short[][] get16BitLookupTable() throws FormatException, IOException {
+        ensureOpen();
+        return super.get16BitLookupTable();
+    }
+
+    @Override
+    public IFormatReader unwrap() throws FormatException, IOException {
+        ensureOpen();
+        return super.unwrap();
+    }
+
+    @Override
+    public void reopenFile() throws IOException {
+        if (answersFromState()) {
+            // Opening it is all there is to do
+            openReader();
+            return;
+        }
+        super.reopenFile();
+    }
+
+    @Override
+    public Object openPlane(int no, int x, int y, int w, int h) throws FormatException, IOException {
+        ensureOpen();
+        return super.openPlane(no, x, y, w, h);
+    }
+
+    @Override
+    public boolean isInterleaved(int subC) {
+        openReader();
+        return super.isInterleaved(subC);
+    }
+
+    @Override
+    public int getThumbSizeX() {
+        openReader();
+        return super.getThumbSizeX();
+    }
+
+    @Override
+    public int getThumbSizeY() {
+        openReader();
+        return super.getThumbSizeY();
+    }
+
+    @Override
+    public boolean isThumbnailSeries() {
+        openReader();
+        return super.isThumbnailSeries();
+    }
+
+    @Override
+    public int getNativeDataType() {
+        openReader();
+        return super.getNativeDataType();
+    }
+
+    @Override
+    public int[] getChannelDimLengths() {
+        openReader();
+        return super.getChannelDimLengths();
+    }
+
+    @Override
+    public String[] getChannelDimTypes() {
+        openReader();
+        return super.getChannelDimTypes();
+    }
+
+    @Override
+    public Modulo getModuloZ() {
+        openReader();
+        return super.getModuloZ();
+    }
+
+    @Override
+    public Modulo getModuloC() {
+        openReader();
+        return super.getModuloC();
+    }
+
+    @Override
+    public Modulo getModuloT() {
+        openReader();
+        return super.getModuloT();
+    }
+
+    @Override
+    public int[] getZCTModuloCoords(int index) {
+        openReader();
+        return super.getZCTModuloCoords(index);
+    }
+
+    @Override
+    public String[] getUsedFiles(boolean noPixels) {
+        openReader();
+        return super.getUsedFiles(noPixels);
+    }
+
+    @Override
+    public String[] getSeriesUsedFiles() {
+        openReader();
+        return super.getSeriesUsedFiles();
+    }
+
+    @Override
+    public String[] getSeriesUsedFiles(boolean noPixels) {
+        openReader();
+        return super.getSeriesUsedFiles(noPixels);
+    }
+
+    @Override
+    public FileInfo[] getAdvancedUsedFiles(boolean noPixels) {
+        openReader();
+        return super.getAdvancedUsedFiles(noPixels);
+    }
+
+    @Override
+    public FileInfo[] getAdvancedSeriesUsedFiles(boolean noPixels) {
+        openReader();
+        return super.getAdvancedSeriesUsedFiles(noPixels);
+    }
+
+    @Override
+    public boolean hasCompanionFiles() {
+        openReader();
+        return super.hasCompanionFiles();
+    }
+
+    @Override
+    public String[] getDomains() {
+        openReader();
+        return super.getDomains();
+    }
+
+    @Override
+    public boolean isMetadataComplete() {
+        openReader();
+        return super.isMetadataComplete();
+    }
+
+    @Override
+    public Object getMetadataValue(String field) {
+        openReader();
+        return super.getMetadataValue(field);
+    }
+
+    @Override
+    public Object getSeriesMetadataValue(String field) {
+        openReader();
+        return super.getSeriesMetadataValue(field);
+    }
+
+    @Override
+    public Hashtable<String, Object> getGlobalMetadata() {
+        openReader();
+        return super.getGlobalMetadata();
+    }
+
+    @Override
+    public Hashtable<String, Object> getSeriesMetadata() {
+        openReader();
+        return super.getSeriesMetadata();
+    }
+
+    @Override
+    public List<CoreMetadata> getCoreMetadataList() {
+        openReader();
+        return super.getCoreMetadataList();
+    }
+
+    @Override
+    public int getCoreIndex() {
+        openReader();
+        return super.getCoreIndex();
+    }
+
+    @Override
+    public void setCoreIndex(int no) {
+        openReader();
+        super.setCoreIndex(no);
+    }
+
+    @Override
+    public int seriesToCoreIndex(int series) {
+        openReader();
+        return super.seriesToCoreIndex(series);
+    }
+
+    @Override
+    public int coreIndexToSeries(int index) {
+        openReader();
+        return super.coreIndexToSeries(index);
+    }
+}
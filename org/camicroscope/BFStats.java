@@ -0,0 +1,156 @@
+package org.camicroscope;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Call counts, errors, bytes and latency per operation and file format,
+// for all sessions. Recording takes no lock: counters are adders and
+// latencies go to a histogram of atomic buckets, each a quarter of
+// a power of two wide, so percentiles are within about 20%.
+final class BFStats {
+    static final int OPEN = 0;
+    static final int OPEN_BYTES = 1;
+    static final int OPEN_THUMB_BYTES = 2;
+    static final int IS_COMPATIBLE = 3;
+    static final int GENERATE_PYRAMID = 4;
+    private static final String[] NAMES = { "open", "openBytes", "openThumbBytes", "isCompatible",
+            "generatePyramid" };
+
+    static final int VERSION = 1;
+
+    // 4 buckets per power of two up to 2^63 ns
+    private static final int BUCKETS = 256;
+
+    private static final class Recorder {
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, int result, boolean producesBytes) {
+            calls.increment();
+            if (result < 0) {
+                errors.increment();
+            } else if (producesBytes) {
+                bytes.add(result);
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            histogram.incrementAndGet(bucket(nanos));
+        }
+
+        // Upper bound of the bucket holding the given fraction of calls
+        long percentile(double fraction) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            long wanted = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= wanted && seen > 0) {
+                    return Math.min(upperBound(i), maxNanos.get());
+                }
+            }
+            return 0;
+        }
+    }
+
+    // Keyed by format, then operation
+    private static volatile ConcurrentHashMap<String, Recorder[]> recorders = new ConcurrentHashMap<>();
+
+    private BFStats() {
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < 4) {
+            return (int) Math.max(nanos, 0);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (msb - 2)) & 3;
+        return msb * 4 + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int msb = bucket / 4;
+        int sub = bucket % 4;
+        return ((4L + sub + 1) << (msb - 2)) - 1;
+    }
+
+    // result: what the call returned; negative is an error, and for
+    // calls that produce bytes, otherwise the number of bytes
+    static void record(int operation, String format, long startNanos, int result) {
+        long nanos = System.nanoTime() - startNanos;
+        Recorder[] r = recorders.computeIfAbsent(format == null ? "" : format, f -> {
+            Recorder[] all = new Recorder[NAMES.length];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = new Recorder();
+            }
+            return all;
+        });
+        boolean producesBytes = operation == OPEN_BYTES || operation == OPEN_THUMB_BYTES;
+        r[operation].record(nanos, result, producesBytes);
+    }
+
+    static void reset() {
+        recorders = new ConcurrentHashMap<>();
+    }
+
+    // Little-endian:
+    // int version (1), int entry count, then for each operation and
+    // format that was called at least once:
+    // string operation, string format (empty if not known),
+    // long calls, errors, bytes, total ns, p50 ns, p99 ns, max ns
+    // where a string is an int length and UTF-8 bytes.
+    // Returns the number of bytes written, or -1 if dest is too small.
+    static int write(ByteBuffer dest) {
+        ArrayList<byte[]> entries = new ArrayList<>();
+        for (Map.Entry<String, Recorder[]> e : recorders.entrySet()) {
+            byte[] format = e.getKey().getBytes(StandardCharsets.UTF_8);
+            Recorder[] all = e.getValue();
+            for (int op = 0; op < all.length; op++) {
+                Recorder r = all[op];
+                long calls = r.calls.sum();
+                if (calls == 0) {
+                    continue;
+                }
+                byte[] name = NAMES[op].getBytes(StandardCharsets.UTF_8);
+                ByteBuffer b = ByteBuffer.allocate(8 + name.length + format.length + 7 * 8)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                b.putInt(name.length).put(name).putInt(format.length).put(format);
+                b.putLong(calls).putLong(r.errors.sum()).putLong(r.bytes.sum()).putLong(r.totalNanos.sum())
+                        .putLong(r.percentile(0.5)).putLong(r.percentile(0.99)).putLong(r.maxNanos.get());
+                entries.add(b.array());
+            }
+        }
+        int size = 8;
+        for (byte[] entry : entries) {
+            size += entry.length;
+        }
+        if (size > dest.capacity()) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(VERSION).putInt(entries.size());
+        dest.rewind().put(header.array());
+        for (byte[] entry : entries) {
+            dest.put(entry);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,159 @@
+package org.camicroscope;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decoded tile bytes shared by all BFBridge instances.
+// The reader state cache only saves metadata so without this every pan
+// over the same area decodes the same JPEG/JPEG-2000 tiles again.
+// Tiles are stored in direct buffers so that they don't count
+// towards the heap and can be copied to communicationBuffer
+// without going through a byte[].
+final class BFTileCache {
+    private BFTileCache() {
+    }
+
+    // resolution is -1 for thumbnails, which are then w by h
+    record Key(BFFileKey file, int series, int resolution, int plane, int x, int y, int w, int h) {
+    }
+
+    // -Dbfbridge.tilecache=268435456 for 256 MiB. 0 (default) disables.
+    private static final long budget = Long.getLong("bfbridge.tilecache", 0);
+
+    // Least recently used first
+    private static final LinkedHashMap<Key, ByteBuffer> tiles = new LinkedHashMap<>(256, 0.75f, true);
+    private static long bytesUsed = 0;
+    // Evicted buffers by capacity. Most tiles of a file have the same size
+    // so reusing them saves allocating direct memory, which is slow.
+    private static final HashMap<Integer, ArrayDeque<ByteBuffer>> spare = new HashMap<>();
+    private static long spareBytes = 0;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    static boolean isEnabled() {
+        return budget > 0;
+    }
+
+    // Copies the tile to dest at offset and returns its length, or -1 if not cached
+    static int get(Key key, ByteBuffer dest, int offset) {
+        if (!isEnabled()) {
+            return -1;
+        }
+        synchronized (BFTileCache.class) {
+            ByteBuffer tile = tiles.get(key);
+            if (tile == null) {
+                misses.incrementAndGet();
+                return -1;
+            }
+            hits.incrementAndGet();
+            // Copy under the lock since an evicted buffer is reused
+            dest.position(offset);
+            dest.put(tile.duplicate().rewind());
+            return tile.capacity();
+        }
+    }
+
+    static boolean contains(Key key) {
+        if (!isEnabled()) {
+            return false;
+        }
+        synchronized (BFTileCache.class) {
+            return tiles.containsKey(key);
+        }
+    }
+
+    // Stores a copy of the first length bytes of src
+    static void put(Key key, byte[] src, int length) {
+        if (!isEnabled() || length > budget) {
+            return;
+        }
+        synchronized (BFTileCache.class) {
+            if (tiles.containsKey(key)) {
+                return;
+            }
+            while (bytesUsed + length > budget) {
+                Iterator<Map.Entry<Key, ByteBuffer>> it = tiles.entrySet().iterator();
+                ByteBuffer evicted = it.next().getValue();
+                it.remove();
+                bytesUsed -= evicted.capacity();
+                recycle(evicted);
+            }
+            ByteBuffer tile = takeSpare(length);
+            if (tile == null) {
+                tile = ByteBuffer.allocateDirect(length);
+            }
+            tile.clear();
+            tile.put(src, 0, length);
+            tiles.put(key, tile);
+            bytesUsed += length;
+        }
+    }
+
+    // Drops tiles of other versions of the file so that they
+    // don't take space until they are evicted
+    static void invalidateStale(BFFileKey file) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (BFTileCache.class) {
+            Iterator<Map.Entry<Key, ByteBuffer>> it = tiles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, ByteBuffer> e = it.next();
+                BFFileKey other = e.getKey().file();
+                if (other.path().equals(file.path()) && !other.equals(file)) {
+                    it.remove();
+                    bytesUsed -= e.getValue().capacity();
+                    recycle(e.getValue());
+                }
+            }
+        }
+    }
+
+    // Writes hits, misses, entries, bytes used and budget as
+    // little-endian longs and returns the number of bytes written,
+    // or -1 if dest is too small
+    static int writeStats(ByteBuffer dest) {
+        if (dest.capacity() < 5 * 8) {
+            return -1;
+        }
+        long entries;
+        long used;
+        synchronized (BFTileCache.class) {
+            entries = tiles.size();
+            used = bytesUsed;
+        }
+        dest = dest.duplicate().order(ByteOrder.LITTLE_ENDIAN).rewind();
+        dest.putLong(hits.get());
+        dest.putLong(misses.get());
+        dest.putLong(entries);
+        dest.putLong(used);
+        dest.putLong(budget);
+        return 5 * 8;
+    }
+
+    // Callers hold the lock
+    private static void recycle(ByteBuffer b) {
+        // Spare buffers are outside the budget so keep them bounded
+        if (spareBytes + b.capacity() > budget / 8) {
+            return;
+        }
+        spare.computeIfAbsent(b.capacity(), k -> new ArrayDeque<>()).push(b);
+        spareBytes += b.capacity();
+    }
+
+    private static ByteBuffer takeSpare(int capacity) {
+        ArrayDeque<ByteBuffer> list = spare.get(capacity);
+        if (list == null || list.isEmpty()) {
+            return null;
+        }
+        spareBytes -= capacity;
+        return list.pop();
+    }
+}
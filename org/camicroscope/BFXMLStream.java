@@ -0,0 +1,163 @@
+package org.camicroscope;
+
+import loci.common.xml.XMLTools;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.meta.OMEXMLMetadataRoot;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Serializes OME-XML on a background thread into a queue of chunks,
+// from which the caller takes one communicationBuffer at a time.
+// Unlike dumpXML, the serialized document never exists as a String
+// or byte[] on our side, and a buffer that is too small doesn't mean
+// serializing again. The DOM is still built whole before writing
+// starts, as Bio-Formats only serializes from one, and it is several
+// times the size of the text: the peak heap is the DOM's, not lower.
+// The writer blocks while the queue is full, so an abandoned stream
+// only costs the DOM and the queued chunks until close().
+final class BFXMLStream {
+    private static final int CHUNK_SIZE = 64 << 10;
+    // 1 MiB queued at most
+    private static final int QUEUE_CHUNKS = 16;
+    // Queued after the last chunk
+    private static final byte[] END = new byte[0];
+    private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final String SCHEMA_LOCATION = "http://www.openmicroscopy.org/Schemas/OME/2016-06 "
+            + "http://www.openmicroscopy.org/Schemas/OME/2016-06/ome.xsd";
+
+    // Shared by all streams. Not the decode workers: an abandoned stream
+    // holds its thread until close().
+    private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "bfbridge-xml");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final Future<?> writer;
+    private volatile Exception failure = null;
+    private volatile boolean done = false;
+    // The chunk being copied out and how far; only used by next()
+    private byte[] current = null;
+    private int position = 0;
+
+    BFXMLStream(OMEXMLMetadata metadata) {
+        writer = writers.submit(() -> {
+            try (ChunkOutputStream out = new ChunkOutputStream()) {
+                // What dumpXML does, minus making a String of it
+                Document document = XMLTools.createDocument();
+                Element root = ((OMEXMLMetadataRoot) metadata.getRoot()).asXMLElement(document);
+                root.setAttribute("xmlns:xsi", XSI_NAMESPACE);
+                root.setAttribute("xsi:schemaLocation", SCHEMA_LOCATION);
+                document.appendChild(root);
+                XMLTools.writeXML(out, document);
+            } catch (Exception e) {
+                // After close() the reader stopped early
+                if (!done) {
+                    failure = e;
+                }
+            }
+            if (!done) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    // close() was called
+                }
+            }
+        });
+    }
+
+    // Cuts what the writer writes into chunks for the queue
+    private final class ChunkOutputStream extends OutputStream {
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int length = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == chunk.length) {
+                send();
+            }
+            chunk[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == chunk.length) {
+                    send();
+                }
+                int n = Math.min(len, chunk.length - length);
+                System.arraycopy(b, off, chunk, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (length > 0) {
+                send();
+            }
+        }
+
+        private void send() throws IOException {
+            if (done) {
+                throw new IOException("XML stream was closed");
+            }
+            try {
+                queue.put(length == chunk.length ? chunk : Arrays.copyOf(chunk, length));
+            } catch (InterruptedException e) {
+                throw new IOException("XML stream was closed");
+            }
+            chunk = new byte[CHUNK_SIZE];
+            length = 0;
+        }
+    }
+
+    // Fills dest from its start with the next part of the document.
+    // Returns the number of bytes written, 0 at the end.
+    int next(ByteBuffer dest) throws Exception {
+        dest.rewind();
+        int written = 0;
+        while (dest.remaining() > 0) {
+            if (current == null || position == current.length) {
+                if (done) {
+                    break;
+                }
+                current = queue.take();
+                position = 0;
+                if (current == END) {
+                    current = null;
+                    done = true;
+                    break;
+                }
+            }
+            int n = Math.min(current.length - position, dest.remaining());
+            dest.put(current, position, n);
+            position += n;
+            written += n;
+        }
+        if (written == 0 && failure != null) {
+            throw failure;
+        }
+        return written;
+    }
+
+    void close() {
+        done = true;
+        // Wakes the writer if it waits for room in the queue
+        writer.cancel(true);
+        queue.clear();
+    }
+}